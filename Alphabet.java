@@ -1,4 +1,7 @@
 package enigma;
+
+import java.util.Arrays;
+
 import static enigma.EnigmaException.*;
 
 /** An alphabet of encodable characters.  Provides a mapping from characters
@@ -8,11 +11,30 @@ import static enigma.EnigmaException.*;
 class Alphabet {
     /** variable to store characters in the alphabet. */
     private String characters;
+    /** _index[c] is the index of character C, or -1 if C is not in the
+     *  alphabet; characters beyond its end are not in the alphabet. */
+    private final int[] _index;
+    /** True iff I am the alphabet returned by bytes(). */
+    private final boolean _bytes;
 
     /** A new alphabet containing CHARS. The K-th character has index
      *  K (numbering from 0). No character may be duplicated. */
     Alphabet(String chars) {
         characters = chars;
+        int limit = 0;
+        for (int i = 0; i < chars.length(); i++) {
+            limit = Math.max(limit, chars.charAt(i) + 1);
+        }
+        _index = new int[limit];
+        Arrays.fill(_index, -1);
+        for (int i = 0; i < chars.length(); i++) {
+            _index[chars.charAt(i)] = i;
+        }
+        boolean bytes = chars.length() == BYTE_COUNT;
+        for (int i = 0; bytes && i < BYTE_COUNT; i++) {
+            bytes = chars.charAt(i) == i;
+        }
+        _bytes = bytes;
     }
 
     /** A default alphabet of all upper-case characters. */
@@ -20,6 +42,63 @@ class Alphabet {
         this("ABCDEFGHIJKLMNOPQRSTUVWXYZ");
     }
 
+    /** Name used in configuration files for the byte alphabet.  It
+     *  repeats characters, so it can never name an ordinary alphabet. */
+    static final String BYTES_NAME = "0x00-0xFF";
+
+    /** Returns the alphabet of all 256 byte values, in which the
+     *  character with code K (0 <= K < 256) has index K.  Byte data
+     *  can be converted with it directly, without decoding. */
+    static Alphabet bytes() {
+        StringBuilder chars = new StringBuilder();
+        for (int i = 0; i < BYTE_COUNT; i++) {
+            chars.append((char) i);
+        }
+        return new Alphabet(chars.toString());
+    }
+
+    /** Returns true iff I am the alphabet returned by bytes(). */
+    boolean isBytes() {
+        return _bytes;
+    }
+
+    /** Returns the characters written as TEXT in a configuration file or
+     *  settings line.  In the byte alphabet, whose characters include
+     *  blanks, parentheses and control characters, each character is
+     *  written as two hexadecimal digits giving its byte value, so that
+     *  "00ff41" stands for the bytes 0x00, 0xFF and 0x41.  In any other
+     *  alphabet, TEXT stands for itself. */
+    String decode(String text) {
+        if (!_bytes) {
+            return text;
+        }
+        if (text.length() % 2 != 0) {
+            throw error("odd number of hexadecimal digits in '%s'", text);
+        }
+        char[] chars = new char[text.length() / 2];
+        for (int i = 0; i < chars.length; i++) {
+            int hi = Character.digit(text.charAt(2 * i), HEX);
+            int lo = Character.digit(text.charAt(2 * i + 1), HEX);
+            if (hi < 0 || lo < 0) {
+                throw error("bad hexadecimal byte in '%s'", text);
+            }
+            chars[i] = (char) (hi * HEX + lo);
+        }
+        return new String(chars);
+    }
+
+    /** Appends the character with index INDEX to OUT as it is written in
+     *  configuration files and settings lines (see decode). */
+    void encode(StringBuilder out, int index) {
+        char ch = toChar(index);
+        if (_bytes) {
+            out.append(Character.forDigit(ch / HEX, HEX))
+                .append(Character.forDigit(ch % HEX, HEX));
+        } else {
+            out.append(ch);
+        }
+    }
+
     /** Returns the size of the alphabet. */
     int size() {
         return characters.length();
@@ -27,32 +106,32 @@ class Alphabet {
 
     /** Returns true if CH is in this alphabet. */
     boolean contains(char ch) {
-        for (char i : characters.toCharArray()) {
-            if (i == ch) {
-                return true;
-            }
-        }
-        return false;
+        return toInt(ch) >= 0;
     }
 
     /** Returns character number INDEX in the alphabet, where
      *  0 <= INDEX < size(). */
     char toChar(int index) {
-        if (index < 0 || index > size()) {
+        if (index < 0 || index >= size()) {
             throw error("Index is out of range");
         }
         return characters.charAt(index);
     }
 
     /** Returns the index of character CH which must be in
-     *  the alphabet. This is the inverse of toChar(). */
+     *  the alphabet. This is the inverse of toChar().  Returns -1 if
+     *  CH is not in the alphabet, so callers can classify characters
+     *  with a single lookup. */
     int toInt(char ch) {
-        for (int i = 0; i < size(); i++) {
-            if ((int) characters.charAt(i) == (int) ch) {
-                return i;
-            }
+        if (ch >= _index.length) {
+            return -1;
         }
-        return -1;
+        return _index[ch];
     }
 
+    /** Number of distinct byte values. */
+    private static final int BYTE_COUNT = 256;
+    /** Radix of hexadecimal digits. */
+    private static final int HEX = 16;
+
 }
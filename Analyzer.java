@@ -0,0 +1,270 @@
+package enigma;
+
+import java.io.PrintStream;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.Scanner;
+
+import static enigma.EnigmaException.*;
+
+/** Statistics of a stream of ciphertext over a sliding window of its
+ *  most recent characters: unigram and bigram counts, their indices of
+ *  coincidence, and for each period P up to a limit, the rate at which
+ *  characters P apart coincide.  Every statistic is updated as each
+ *  character enters and leaves the window, so nothing is rescanned.
+ *  @author Haoqing Xuan
+ */
+final class Analyzer {
+
+    /** Analyze ciphertext as specified by ARGS, where 1 <= ARGS.length
+     *  <= 3 after any leading options.  ARGS[0] names a configuration
+     *  file, whose alphabet is used.  ARGS[1] and ARGS[2] name the input
+     *  and output files, as for Main.  Input is read as by Main: lines
+     *  containing "*" are settings lines and are skipped, and characters
+     *  not in the alphabet are ignored.  The options are
+     *      --window=N   characters in the window (default 10000)
+     *      --every=N    characters between reports (default 10000)
+     *      --periods=N  longest period measured (default 32)
+     *  and a report is also printed at the end of the input.  Exits
+     *  normally if there are no errors; otherwise with code 1. */
+    public static void main(String... args) {
+        try {
+            int window = DEFAULT_WINDOW;
+            int every = DEFAULT_EVERY;
+            int periods = DEFAULT_PERIODS;
+            int first;
+            for (first = 0; first < args.length
+                     && args[first].startsWith("--"); first += 1) {
+                String opt = args[first];
+                int value = number(opt);
+                if (opt.startsWith("--window=")) {
+                    window = value;
+                } else if (opt.startsWith("--every=")) {
+                    every = value;
+                } else if (opt.startsWith("--periods=")) {
+                    periods = value;
+                } else {
+                    throw error("unknown option %s", opt);
+                }
+            }
+            int rest = args.length - first;
+            if (rest < 1 || rest > 3) {
+                throw error("Only 1, 2, or 3 command-line arguments"
+                            + " allowed");
+            }
+            Alphabet alphabet = Registry.machine(args[first]).alphabet();
+            Scanner input = rest > 1 ? Main.getInput(args[first + 1])
+                : new Scanner(System.in, StandardCharsets.UTF_8);
+            PrintStream output = rest > 2 ? Main.getOutput(args[first + 2])
+                : System.out;
+            Analyzer analyzer = new Analyzer(alphabet, window, periods);
+            analyzer.process(input, output, every);
+            output.flush();
+            return;
+        } catch (EnigmaException excp) {
+            System.err.printf("Error: %s%n", excp.getMessage());
+        }
+        System.exit(1);
+    }
+
+    /** Return the value of the numeric option OPT. */
+    private static int number(String opt) {
+        try {
+            return Integer.parseInt(opt.substring(opt.indexOf('=') + 1));
+        } catch (NumberFormatException excp) {
+            throw error("bad number in %s", opt);
+        }
+    }
+
+    /** An analyzer of text in ALPHABET over a window of the last WINDOW
+     *  characters, measuring periods 1 to PERIODS.  Bigram counts are
+     *  kept only for alphabets of at most BIGRAM_LIMIT characters. */
+    Analyzer(Alphabet alphabet, int window, int periods) {
+        if (window < 2 || periods < 1 || periods >= window) {
+            throw error("bad window or period");
+        }
+        _alphabet = alphabet;
+        _size = alphabet.size();
+        _window = new int[window];
+        _periods = periods;
+        _unigrams = new int[_size];
+        _bigrams = _size <= BIGRAM_LIMIT ? new int[_size * _size] : null;
+        _matches = new int[periods + 1];
+    }
+
+    /** Read ciphertext from INPUT, printing a report on OUTPUT after
+     *  every EVERY characters and at the end. */
+    void process(Scanner input, PrintStream output, int every) {
+        if (every <= 0) {
+            throw error("bad report interval");
+        }
+        long next = every;
+        while (input.hasNextLine()) {
+            String line = input.nextLine();
+            if (line.contains("*")) {
+                continue;
+            }
+            for (int i = 0; i < line.length(); i++) {
+                int c = _alphabet.toInt(line.charAt(i));
+                if (c >= 0) {
+                    add(c);
+                    if (_total == next) {
+                        output.println(report());
+                        next += every;
+                    }
+                }
+            }
+        }
+        if (_total != next - every) {
+            output.println(report());
+        }
+    }
+
+    /** Add the character with index C to the stream, dropping the
+     *  oldest character from the window if it is full. */
+    void add(int c) {
+        int cap = _window.length;
+        if (_count == cap) {
+            remove();
+        }
+        int at = (int) (_total % cap);
+        for (int p = 1; p <= _periods && p <= _count; p++) {
+            if (_window[Math.floorMod(at - p, cap)] == c) {
+                _matches[p] += 1;
+            }
+        }
+        if (_count > 0 && _bigrams != null) {
+            int b = _window[Math.floorMod(at - 1, cap)] * _size + c;
+            _bigramPairs += 2L * _bigrams[b];
+            _bigrams[b] += 1;
+        }
+        _pairs += 2L * _unigrams[c];
+        _unigrams[c] += 1;
+        _window[at] = c;
+        _count += 1;
+        _total += 1;
+    }
+
+    /** Drop the oldest character from the window. */
+    private void remove() {
+        int cap = _window.length;
+        int at = (int) ((_total - _count) % cap);
+        int c = _window[at];
+        for (int p = 1; p <= _periods && p < _count; p++) {
+            if (_window[(at + p) % cap] == c) {
+                _matches[p] -= 1;
+            }
+        }
+        if (_bigrams != null && _count > 1) {
+            int b = c * _size + _window[(at + 1) % cap];
+            _bigrams[b] -= 1;
+            _bigramPairs -= 2L * _bigrams[b];
+        }
+        _unigrams[c] -= 1;
+        _pairs -= 2L * _unigrams[c];
+        _count -= 1;
+    }
+
+    /** Return the number of characters added in all. */
+    long total() {
+        return _total;
+    }
+
+    /** Return the number of characters in the window. */
+    int count() {
+        return _count;
+    }
+
+    /** Return the number of times the character with index C occurs in
+     *  the window. */
+    int unigram(int c) {
+        return _unigrams[c];
+    }
+
+    /** Return the number of times the character with index A is
+     *  followed by that with index B in the window, or -1 if bigrams are
+     *  not kept. */
+    int bigram(int a, int b) {
+        return _bigrams == null ? -1 : _bigrams[a * _size + b];
+    }
+
+    /** Return the index of coincidence of the window: the chance that
+     *  two of its characters chosen at random are equal, times the
+     *  alphabet size, so that uniformly random text scores about 1. */
+    double ic() {
+        long n = _count;
+        return n < 2 ? 0 : (double) _pairs * _size / (n * (n - 1));
+    }
+
+    /** Return the index of coincidence of the bigrams in the window,
+     *  normalized as for ic(), or 0 if bigrams are not kept. */
+    double bigramIc() {
+        long n = _count - 1;
+        if (_bigrams == null || n < 2) {
+            return 0;
+        }
+        return (double) _bigramPairs * _size * _size / (n * (n - 1));
+    }
+
+    /** Return the fraction of characters in the window equal to the
+     *  character P before them, times the alphabet size, where
+     *  1 <= P <= the longest period measured. */
+    double kappa(int p) {
+        long pairs = _count - p;
+        return pairs <= 0 ? 0 : (double) _matches[p] * _size / pairs;
+    }
+
+    /** Return the period with the highest kappa, the shortest if
+     *  several are equal. */
+    int period() {
+        int best = 1;
+        for (int p = 2; p <= _periods; p++) {
+            if (kappa(p) > kappa(best)) {
+                best = p;
+            }
+        }
+        return best;
+    }
+
+    /** Return a one-line summary of the window. */
+    String report() {
+        int p = period();
+        return String.format("at %d: window %d, ic %.4f, bigram ic %.4f,"
+                             + " period %d (kappa %.4f)", _total, _count,
+                             ic(), bigramIc(), p, kappa(p));
+    }
+
+    /** Default window size. */
+    private static final int DEFAULT_WINDOW = 10000;
+    /** Default report interval. */
+    private static final int DEFAULT_EVERY = 10000;
+    /** Default longest period. */
+    private static final int DEFAULT_PERIODS = 32;
+    /** Largest alphabet for which bigrams are counted. */
+    private static final int BIGRAM_LIMIT = 1024;
+
+    /** The alphabet. */
+    private final Alphabet _alphabet;
+    /** Size of the alphabet. */
+    private final int _size;
+    /** The window, as a circular buffer of character indices. */
+    private final int[] _window;
+    /** Longest period measured. */
+    private final int _periods;
+    /** _unigrams[c] counts C in the window. */
+    private final int[] _unigrams;
+    /** _bigrams[a * _size + b] counts A followed by B in the window. */
+    private final int[] _bigrams;
+    /** _matches[p] counts the characters in the window equal to the
+     *  character P before them, also in the window. */
+    private final int[] _matches;
+    /** Sum over C of _unigrams[c] * (_unigrams[c] - 1). */
+    private long _pairs;
+    /** Sum over bigrams B of _bigrams[b] * (_bigrams[b] - 1). */
+    private long _bigramPairs;
+    /** Number of characters in the window. */
+    private int _count;
+    /** Number of characters added in all. */
+    private long _total;
+}
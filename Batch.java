@@ -0,0 +1,177 @@
+package enigma;
+
+import java.io.IOException;
+import java.io.PrintStream;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static enigma.EnigmaException.*;
+
+/** Batch Enigma simulator: applies one configuration to many message
+ *  files at once, in a single JVM.
+ *  @author Haoqing Xuan
+ */
+public final class Batch {
+
+    /** Process the message files specified by ARGS, where ARGS.length
+     *  is 3.  ARGS[0] is the name of a configuration file.  ARGS[1] is
+     *  either a directory, all of whose files are processed, or a glob
+     *  pattern such as "msgs/*.in".  ARGS[2] names an output directory,
+     *  under which each input's result is written at the same path
+     *  relative to the input directory.  Prints the aggregate
+     *  throughput on the standard output.  Exits normally if every file
+     *  is processed without error; otherwise with code 1. */
+    public static void main(String... args) {
+        try {
+            if (new Batch(args).process()) {
+                return;
+            }
+        } catch (EnigmaException excp) {
+            System.err.printf("Error: %s%n", excp.getMessage());
+        }
+        System.exit(1);
+    }
+
+    /** Check ARGS, read the configuration and find the input files
+     *  (see comment on main). */
+    Batch(String[] args) {
+        if (args.length != 3) {
+            throw error("Exactly 3 command-line arguments allowed");
+        }
+        _machine = Registry.machine(args[0]);
+        findInputs(args[1]);
+        _outDir = Paths.get(args[2]);
+    }
+
+    /** Set _inDir and _inputs from SPEC, a directory or glob pattern. */
+    private void findInputs(String spec) {
+        Path path = Paths.get(spec);
+        PathMatcher matcher;
+        if (Files.isDirectory(path)) {
+            _inDir = path;
+            matcher = p -> true;
+        } else {
+            Path base = path.getParent();
+            while (base != null && hasGlob(base.toString())) {
+                base = base.getParent();
+            }
+            _inDir = base == null ? Paths.get("") : base;
+            String pattern = base == null ? spec
+                : base.relativize(path).toString();
+            matcher = FileSystems.getDefault()
+                .getPathMatcher("glob:" + pattern);
+        }
+        try (Stream<Path> files = Files.walk(_inDir.toAbsolutePath())) {
+            Path root = _inDir.toAbsolutePath();
+            _inputs = files.filter(Files::isRegularFile)
+                .map(root::relativize)
+                .filter(matcher::matches)
+                .sorted()
+                .collect(Collectors.toList());
+        } catch (IOException excp) {
+            throw error("could not read %s", spec);
+        }
+        if (_inputs.isEmpty()) {
+            throw error("no input files match %s", spec);
+        }
+    }
+
+    /** Return true iff S contains glob metacharacters. */
+    private static boolean hasGlob(String s) {
+        return s.indexOf('*') >= 0 || s.indexOf('?') >= 0
+            || s.indexOf('[') >= 0 || s.indexOf('{') >= 0;
+    }
+
+    /** Process every input file, each on its own thread with its own
+     *  copy of the configured machine.  Report errors on the standard
+     *  error and throughput on the standard output.  Return true iff
+     *  no file failed. */
+    boolean process() {
+        long start = System.nanoTime();
+        ExecutorService pool = newExecutor();
+        List<Future<Long>> results = new ArrayList<>();
+        for (Path file : _inputs) {
+            results.add(pool.submit(() -> processFile(file)));
+        }
+        pool.shutdown();
+
+        long chars = 0;
+        int failed = 0;
+        for (int i = 0; i < results.size(); i++) {
+            try {
+                chars += results.get(i).get();
+            } catch (ExecutionException excp) {
+                failed += 1;
+                System.err.printf("Error: %s: %s%n", _inputs.get(i),
+                                  excp.getCause().getMessage());
+            } catch (InterruptedException excp) {
+                Thread.currentThread().interrupt();
+                throw error("interrupted");
+            }
+        }
+        double secs = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d files, %d characters in %.3f s"
+                          + " (%.0f chars/s)%n",
+                          _inputs.size() - failed, chars, secs,
+                          chars / Math.max(secs, 1e-9));
+        return failed == 0;
+    }
+
+    /** Convert the messages in the input file FILE (relative to _inDir)
+     *  into the corresponding file under _outDir.  Return the number
+     *  of characters converted. */
+    private long processFile(Path file) throws IOException {
+        Path out = _outDir.resolve(file.toString());
+        if (out.getParent() != null) {
+            Files.createDirectories(out.getParent());
+        }
+        try (Scanner input = new Scanner(_inDir.resolve(file),
+                                         StandardCharsets.UTF_8);
+             PrintStream output = new PrintStream(out.toFile(),
+                                                  StandardCharsets.UTF_8)) {
+            Main main = new Main(_machine.copy(), input, output);
+            main.process();
+            return main.converted();
+        }
+    }
+
+    /** Return an executor that runs each task on its own virtual thread
+     *  where the running JVM supports them, and otherwise on a pool with
+     *  one platform thread per processor. */
+    static ExecutorService newExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException excp) {
+            return Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors());
+        }
+    }
+
+    /** The configured machine; each file gets a copy. */
+    private final Machine _machine;
+
+    /** Directory against which input file names are resolved. */
+    private Path _inDir;
+
+    /** Input files, relative to _inDir. */
+    private List<Path> _inputs;
+
+    /** Root of the output tree. */
+    private final Path _outDir;
+}
@@ -0,0 +1,514 @@
+package enigma;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Scanner;
+
+import static enigma.EnigmaException.*;
+
+/** End-to-end benchmark of Main.  For each scenario, generates a
+ *  configuration of random rotors and a corpus of random messages and
+ *  settings lines, runs Main.process over them in this JVM, and reports
+ *  throughput, the percentiles of the time taken per message line
+ *  (including reading it, any settings lines before it, converting and
+ *  printing it), and the peak heap in use.
+ *  @author Haoqing Xuan
+ */
+public final class Bench {
+
+    /** Run the scenarios specified by ARGS, reporting on the standard
+     *  output.  Each argument not starting with "--" is a scenario,
+     *      ALPHABET:ROTORS:PAWLS:LINES:LENGTH:EVERY:PLUGS
+     *  meaning an alphabet of ALPHABET characters, machines with ROTORS
+     *  slots of which PAWLS move, and a corpus of LINES message lines of
+     *  LENGTH characters with a settings line, plugging PLUGS pairs,
+     *  before every EVERY of them.  Without scenarios, DEFAULTS are run.
+     *  The options are
+     *      --seed=N    seed of the random generator (default 1)
+     *      --runs=N    number of timed runs per scenario (default 3)
+     *      --warmup=N  number of untimed runs first (default 1)
+     *      --keep=DIR  also write each configuration and corpus, in
+     *                  UTF-8, to DIR
+     *  and any other option is passed to Main (see Main.option).
+     *  Exits normally if there are no errors; otherwise with code 1. */
+    public static void main(String... args) {
+        try {
+            new Bench(args).run(System.out);
+            return;
+        } catch (EnigmaException excp) {
+            System.err.printf("Error: %s%n", excp.getMessage());
+        }
+        System.exit(1);
+    }
+
+    /** A benchmark as specified by ARGS (see comment on main). */
+    Bench(String[] args) {
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                _scenarios.add(new Scenario(arg));
+            } else if (arg.startsWith("--seed=")) {
+                _seed = number(arg);
+            } else if (arg.startsWith("--runs=")) {
+                _runs = (int) number(arg);
+            } else if (arg.startsWith("--warmup=")) {
+                _warmup = (int) number(arg);
+            } else if (arg.startsWith("--keep=")) {
+                _keep = Paths.get(arg.substring(arg.indexOf('=') + 1));
+            } else {
+                _mainOptions.add(arg);
+            }
+        }
+        if (_runs <= 0 || _warmup < 0) {
+            throw error("bad number of runs");
+        }
+        if (_scenarios.isEmpty()) {
+            for (String spec : DEFAULTS) {
+                _scenarios.add(new Scenario(spec));
+            }
+        }
+    }
+
+    /** Return the value of the numeric option OPT. */
+    private static long number(String opt) {
+        String value = opt.substring(opt.indexOf('=') + 1);
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException excp) {
+            throw error("bad number in %s", opt);
+        }
+    }
+
+    /** Run every scenario, printing a line of results for each on
+     *  OUT. */
+    void run(PrintStream out) {
+        out.printf("%-28s %12s %10s %10s %10s %8s%n", "scenario",
+                   "chars/s", "p50 us", "p99 us", "max us", "heap MB");
+        for (Scenario scenario : _scenarios) {
+            Result r = run(scenario);
+            out.printf("%-28s %12.0f %10.1f %10.1f %10.1f %8.1f%n",
+                       scenario, r.chars / r.seconds,
+                       r.percentile(PCT_50) / NANOS_PER_MICRO,
+                       r.percentile(PCT_99) / NANOS_PER_MICRO,
+                       r.percentile(1.0) / NANOS_PER_MICRO,
+                       r.heap / (double) BYTES_PER_MB);
+        }
+    }
+
+    /** Return the results of running SCENARIO. */
+    Result run(Scenario scenario) {
+        Random random = new Random(_seed);
+        String config = scenario.config(random);
+        String corpus = scenario.corpus(random);
+        if (_keep != null) {
+            keep(scenario, config, corpus);
+        }
+        for (int i = 0; i < _warmup; i++) {
+            process(config, corpus, new Timer(scenario.lines));
+        }
+        List<MemoryPoolMXBean> pools = heapPools();
+        for (MemoryPoolMXBean pool : pools) {
+            pool.resetPeakUsage();
+        }
+        Result result = new Result();
+        for (int i = 0; i < _runs; i++) {
+            Timer timer = new Timer(scenario.lines);
+            long start = System.nanoTime();
+            result.chars += process(config, corpus, timer);
+            result.seconds += (System.nanoTime() - start) / 1e9;
+            result.add(timer);
+        }
+        for (MemoryPoolMXBean pool : pools) {
+            result.heap += pool.getPeakUsage().getUsed();
+        }
+        return result;
+    }
+
+    /** Run Main over the messages in CORPUS with the configuration
+     *  CONFIG, sending its output to TIMER.  Return the number of
+     *  characters converted. */
+    private long process(String config, String corpus, Timer timer) {
+        PrintStream output =
+            new PrintStream(timer, false, StandardCharsets.UTF_8);
+        Main main = new Main(new Scanner(config), new Scanner(corpus),
+                             output);
+        for (String opt : _mainOptions) {
+            main.option(opt);
+        }
+        timer.start();
+        main.process();
+        output.flush();
+        return main.converted();
+    }
+
+    /** Write CONFIG and CORPUS, generated for SCENARIO, under _keep. */
+    private void keep(Scenario scenario, String config, String corpus) {
+        String name = scenario.toString().replace(':', '_');
+        try {
+            Files.createDirectories(_keep);
+            Files.write(_keep.resolve(name + ".conf"),
+                        config.getBytes(StandardCharsets.UTF_8));
+            Files.write(_keep.resolve(name + ".inp"),
+                        corpus.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException excp) {
+            throw error("could not write to %s", _keep);
+        }
+    }
+
+    /** Return the memory pools of the heap. */
+    private static List<MemoryPoolMXBean> heapPools() {
+        List<MemoryPoolMXBean> result = new ArrayList<>();
+        for (MemoryPoolMXBean pool
+                 : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                result.add(pool);
+            }
+        }
+        return result;
+    }
+
+    /** The parameters of one generated configuration and corpus. */
+    static class Scenario {
+        /** The scenario described by SPEC, in the form given in the
+         *  comment on main. */
+        Scenario(String spec) {
+            String[] fields = spec.split(":");
+            if (fields.length != FIELDS) {
+                throw error("bad scenario %s", spec);
+            }
+            int[] values = new int[FIELDS];
+            for (int i = 0; i < FIELDS; i++) {
+                try {
+                    values[i] = Integer.parseInt(fields[i]);
+                } catch (NumberFormatException excp) {
+                    throw error("bad scenario %s", spec);
+                }
+            }
+            alphabet = values[0];
+            rotors = values[1];
+            pawls = values[2];
+            lines = values[3];
+            length = values[4];
+            every = values[5];
+            plugs = values[6];
+            if (alphabet < 2 || rotors < 2 || pawls < 0 || pawls >= rotors
+                || lines < 0 || length < 0 || every < 1 || plugs < 0
+                || 2 * plugs > alphabet) {
+                throw error("bad scenario %s", spec);
+            }
+            _chars = characters(alphabet);
+        }
+
+        /** Return a configuration file using RANDOM, with two
+         *  reflectors and two more rotors of each other kind than there
+         *  are slots for.  Reflectors pair up the characters; other
+         *  rotors are random derangements, and moving rotors have one or
+         *  two notches. */
+        String config(Random random) {
+            StringBuilder out = new StringBuilder(_chars);
+            out.append(' ').append(rotors).append(' ').append(pawls)
+                .append('\n');
+            for (int i = 0; i < 2; i++) {
+                out.append("R").append(i).append(" R");
+                cycles(out, reflector(random));
+            }
+            for (int i = 0; i < rotors - pawls - 1 + 2; i++) {
+                out.append("F").append(i).append(" N");
+                cycles(out, derangement(random));
+            }
+            for (int i = 0; i < pawls + 2; i++) {
+                out.append("M").append(i).append(" M");
+                int notches = 1 + random.nextInt(2);
+                for (int k = 0; k < notches; k++) {
+                    out.append(_chars.charAt(random.nextInt(alphabet)));
+                }
+                cycles(out, derangement(random));
+            }
+            return out.toString();
+        }
+
+        /** Return a corpus using RANDOM, as described in the comment on
+         *  main. */
+        String corpus(Random random) {
+            StringBuilder out = new StringBuilder();
+            for (int line = 0; line < lines; line++) {
+                if (line % every == 0) {
+                    settings(out, random);
+                }
+                for (int i = 0; i < length; i++) {
+                    out.append(_chars.charAt(random.nextInt(alphabet)));
+                }
+                out.append('\n');
+            }
+            return out.toString();
+        }
+
+        /** Append a random settings line to OUT using RANDOM. */
+        private void settings(StringBuilder out, Random random) {
+            out.append("* R").append(random.nextInt(2));
+            int fixed = rotors - pawls - 1;
+            for (int i : choose(fixed + 2, fixed, random)) {
+                out.append(" F").append(i);
+            }
+            for (int i : choose(pawls + 2, pawls, random)) {
+                out.append(" M").append(i);
+            }
+            out.append(' ');
+            for (int i = 1; i < rotors; i++) {
+                out.append(_chars.charAt(random.nextInt(alphabet)));
+            }
+            int[] order = shuffled(alphabet, random);
+            for (int i = 0; i < plugs; i++) {
+                out.append(" (").append(_chars.charAt(order[2 * i]))
+                    .append(_chars.charAt(order[2 * i + 1])).append(')');
+            }
+            out.append('\n');
+        }
+
+        /** Return K distinct numbers in 0 .. N-1, chosen using
+         *  RANDOM. */
+        private static int[] choose(int n, int k, Random random) {
+            return Arrays.copyOf(shuffled(n, random), k);
+        }
+
+        /** Return 0 .. N-1 in an order chosen using RANDOM. */
+        private static int[] shuffled(int n, Random random) {
+            int[] result = new int[n];
+            for (int i = 0; i < n; i++) {
+                int j = random.nextInt(i + 1);
+                result[i] = result[j];
+                result[j] = i;
+            }
+            return result;
+        }
+
+        /** Return a random permutation with no fixed points, using
+         *  RANDOM. */
+        private int[] derangement(Random random) {
+            while (true) {
+                int[] perm = shuffled(alphabet, random);
+                boolean fixed = false;
+                for (int i = 0; i < alphabet && !fixed; i++) {
+                    fixed = perm[i] == i;
+                }
+                if (!fixed) {
+                    return perm;
+                }
+            }
+        }
+
+        /** Return a random permutation made of 2-cycles (and, for an
+         *  odd alphabet, one fixed point), using RANDOM. */
+        private int[] reflector(Random random) {
+            int[] order = shuffled(alphabet, random);
+            int[] perm = new int[alphabet];
+            for (int i = 0; i + 1 < alphabet; i += 2) {
+                perm[order[i]] = order[i + 1];
+                perm[order[i + 1]] = order[i];
+            }
+            if (alphabet % 2 == 1) {
+                perm[order[alphabet - 1]] = order[alphabet - 1];
+            }
+            return perm;
+        }
+
+        /** Append PERM to OUT in cycle notation, followed by a
+         *  newline. */
+        private void cycles(StringBuilder out, int[] perm) {
+            boolean[] seen = new boolean[alphabet];
+            for (int i = 0; i < alphabet; i++) {
+                if (seen[i] || perm[i] == i) {
+                    continue;
+                }
+                out.append(" (");
+                for (int j = i; !seen[j]; j = perm[j]) {
+                    seen[j] = true;
+                    out.append(_chars.charAt(j));
+                }
+                out.append(')');
+            }
+            out.append('\n');
+        }
+
+        /** Return N distinct characters that are neither whitespace,
+         *  controls nor surrogates, and have no meaning in
+         *  configurations or settings lines. */
+        private static String characters(int n) {
+            StringBuilder result = new StringBuilder();
+            for (char c = '!'; result.length() < n; c++) {
+                if (c == Character.MAX_VALUE) {
+                    throw error("alphabet too large");
+                }
+                if (RESERVED.indexOf(c) < 0 && !Character.isWhitespace(c)
+                    && !Character.isSpaceChar(c)
+                    && !Character.isISOControl(c)
+                    && !Character.isSurrogate(c) && Character.isDefined(c)) {
+                    result.append(c);
+                }
+            }
+            return result.toString();
+        }
+
+        @Override
+        public String toString() {
+            return alphabet + ":" + rotors + ":" + pawls + ":" + lines
+                + ":" + length + ":" + every + ":" + plugs;
+        }
+
+        /** Number of fields in a scenario. */
+        private static final int FIELDS = 7;
+        /** Characters that are never in a generated alphabet. */
+        private static final String RESERVED = "()*,";
+
+        /** Alphabet size. */
+        final int alphabet;
+        /** Number of rotor slots. */
+        final int rotors;
+        /** Number of moving rotors. */
+        final int pawls;
+        /** Number of message lines. */
+        final int lines;
+        /** Characters per message line. */
+        final int length;
+        /** Message lines per settings line. */
+        final int every;
+        /** Plugboard pairs per settings line. */
+        final int plugs;
+        /** The characters of the alphabet. */
+        private final String _chars;
+    }
+
+    /** An output stream that discards its data, recording the time
+     *  between the ends of successive lines. */
+    private static class Timer extends OutputStream {
+        /** A timer expecting about LINES lines. */
+        Timer(int lines) {
+            _times = new long[Math.max(lines, 1)];
+        }
+
+        /** Start timing the first line now. */
+        void start() {
+            _last = System.nanoTime();
+        }
+
+        @Override
+        public void write(int b) {
+            if (b == '\n') {
+                lineEnd();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            for (int i = off; i < off + len; i++) {
+                if (b[i] == '\n') {
+                    lineEnd();
+                }
+            }
+        }
+
+        /** Record the end of a line. */
+        private void lineEnd() {
+            long now = System.nanoTime();
+            if (_count == _times.length) {
+                _times = Arrays.copyOf(_times, 2 * _count);
+            }
+            _times[_count] = now - _last;
+            _count += 1;
+            _last = now;
+        }
+
+        /** Times taken by each line, in nanoseconds. */
+        private long[] _times;
+        /** Number of lines timed. */
+        private int _count;
+        /** Time the last line ended. */
+        private long _last;
+    }
+
+    /** The measurements of one scenario. */
+    static class Result {
+        /** Add the line times in TIMER. */
+        void add(Timer timer) {
+            int n = _count + timer._count;
+            if (n > _times.length) {
+                _times = Arrays.copyOf(_times, n);
+            }
+            System.arraycopy(timer._times, 0, _times, _count, timer._count);
+            _count = n;
+            _sorted = false;
+        }
+
+        /** Return the time in nanoseconds within which the fraction P of
+         *  lines were processed, or 0 if there were none. */
+        long percentile(double p) {
+            if (_count == 0) {
+                return 0;
+            }
+            if (!_sorted) {
+                Arrays.sort(_times, 0, _count);
+                _sorted = true;
+            }
+            int i = (int) Math.ceil(p * _count) - 1;
+            return _times[Math.max(0, Math.min(i, _count - 1))];
+        }
+
+        /** Characters converted in the timed runs. */
+        long chars;
+        /** Total time of the timed runs, in seconds. */
+        double seconds;
+        /** Peak heap in use during the timed runs, in bytes. */
+        long heap;
+        /** Line times, in nanoseconds. */
+        private long[] _times = new long[0];
+        /** Number of line times. */
+        private int _count;
+        /** True iff _times[0 .. _count-1] is sorted. */
+        private boolean _sorted;
+    }
+
+    /** Scenarios run when none are given: a standard machine, long
+     *  lines, the byte-sized alphabet, a large alphabet, and hundreds
+     *  of rotors. */
+    static final String[] DEFAULTS = {
+        "26:5:3:5000:80:20:10",
+        "26:5:3:100:20000:50:10",
+        "256:8:4:2000:400:50:64",
+        "4096:12:6:500:400:50:512",
+        "62:300:200:200:200:50:20",
+    };
+
+    /** The 50th and 99th percentiles. */
+    private static final double PCT_50 = 0.5, PCT_99 = 0.99;
+    /** Nanoseconds per microsecond. */
+    private static final double NANOS_PER_MICRO = 1e3;
+    /** Bytes per megabyte. */
+    private static final long BYTES_PER_MB = 1 << 20;
+
+    /** The scenarios to run. */
+    private final List<Scenario> _scenarios = new ArrayList<>();
+    /** Options passed to each Main. */
+    private final List<String> _mainOptions = new ArrayList<>();
+    /** Seed of the random generator. */
+    private long _seed = 1;
+    /** Number of timed runs per scenario. */
+    private int _runs = 3;
+    /** Number of untimed runs per scenario. */
+    private int _warmup = 1;
+    /** Directory to write configurations and corpora to, or null. */
+    private Path _keep;
+}
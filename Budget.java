@@ -0,0 +1,376 @@
+package enigma;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/** Process-wide accounting of the memory held by caches of precomputed
+ *  results: machines in the Registry, StateTables, stepping tables,
+ *  fused Cascade tables, rotor conjugates and ResultCaches.  A cache
+ *  reserves the bytes of an entry here before keeping it, and keeps it
+ *  only if the reservation is granted; otherwise it takes its slower
+ *  path, as it would for an entry too large to cache at all.  Memory on
+ *  the Java heap and outside it (mapped files and direct buffers) are
+ *  limited separately, by the system properties enigma.budget.heap and
+ *  enigma.budget.offheap (in bytes).  To make room, entries are evicted
+ *  in increasing order of their value: the time they would take to
+ *  rebuild, times one more than the number of times they have been
+ *  used, per byte held.  Uses are halved from time to time, so that
+ *  entries that were popular long ago do not stay forever.  A new entry
+ *  is refused rather than evict entries worth more than it.  The budget
+ *  holds its entries' keys and owners weakly, and gives up the charge
+ *  for an entry whose key is no longer reachable, since no cache can
+ *  be holding it.
+ *  @author Haoqing Xuan
+ */
+final class Budget {
+
+    /** Not instantiable. */
+    private Budget() {
+    }
+
+    /** Where memory is held. */
+    enum Space {
+        /** On the Java heap. */
+        HEAP,
+        /** Outside the Java heap. */
+        OFF_HEAP
+    }
+
+    /** A cache whose entries are charged to the budget. */
+    interface Owner {
+        /** Drop the entry under KEY, whose charge has been evicted. */
+        void evict(Object key);
+    }
+
+    /** Return the charge for the entry under KEY of OWNER, holding BYTES
+     *  bytes in SPACE and taking about COST nanoseconds to rebuild,
+     *  reserving it if there is none, or null if it cannot be reserved.
+     *  COST is measured where it can be, and otherwise estimated, as by
+     *  estimate().  An existing charge counts as used.  Since the budget
+     *  holds keys weakly, OWNER should keep its entry under the charge's
+     *  key(), which may be an earlier instance equal to KEY.  Entries
+     *  evicted to make room are dropped by their owners before this
+     *  returns, outside any lock of the budget's. */
+    static Charge reserve(Owner owner, Object key, long bytes, Space space,
+                          long cost) {
+        return reserve(new Id(owner, key), bytes, space, cost);
+    }
+
+    /** Return a charge for BYTES bytes of working memory in SPACE, which
+     *  would take about COST nanoseconds to compute again, or null if
+     *  there is no room for it.  Entries worth less are evicted to make
+     *  room as for reserve(), but the charge itself is never evicted: it
+     *  is given up only by its release(). */
+    static Charge hold(long bytes, Space space, long cost) {
+        return reserve(null, bytes, space, cost);
+    }
+
+    /** Return the charge for the entry identified by ID, or for working
+     *  memory if ID is null, as described at reserve(). */
+    private static Charge reserve(Id id, long bytes, Space space,
+                                  long cost) {
+        List<Charge> victims;
+        List<Object> keys = new ArrayList<>();
+        Charge charge;
+        synchronized (LOCK) {
+            expunge();
+            charge = id == null ? null : CHARGES.get(id);
+            if (charge != null) {
+                charge.used();
+                return charge;
+            }
+            charge = new Charge(id, bytes, space, cost);
+            victims = makeRoom(charge);
+            if (victims == null) {
+                return null;
+            }
+            for (Charge victim : victims) {
+                remove(victim);
+                keys.add(victim._id.get());
+            }
+            add(charge);
+        }
+        for (int i = 0; i < victims.size(); i++) {
+            Owner victim = victims.get(i)._id._owner.get();
+            if (victim != null && keys.get(i) != null) {
+                victim.evict(keys.get(i));
+            }
+        }
+        return charge;
+    }
+
+    /** Return an estimate of the nanoseconds taken to compute ENTRIES
+     *  entries of a table, as the cost of rebuilding a table that has
+     *  not been built yet. */
+    static long estimate(long entries) {
+        return entries > Long.MAX_VALUE / ENTRY_NANOS ? Long.MAX_VALUE
+            : entries * ENTRY_NANOS;
+    }
+
+    /** Return the number of bytes reserved in SPACE. */
+    static long held(Space space) {
+        synchronized (LOCK) {
+            expunge();
+            return HELD.get(space);
+        }
+    }
+
+    /** Return the most bytes that may be reserved in SPACE. */
+    static long cap(Space space) {
+        if (space == Space.HEAP) {
+            return Long.getLong("enigma.budget.heap",
+                                Runtime.getRuntime().maxMemory()
+                                / HEAP_FRACTION);
+        }
+        return Long.getLong("enigma.budget.offheap", DEFAULT_OFF_HEAP);
+    }
+
+    /** Return the number of charges held. */
+    static int size() {
+        synchronized (LOCK) {
+            expunge();
+            return CHARGES.size();
+        }
+    }
+
+    /** Give up the charges whose keys are no longer reachable.  Must
+     *  hold LOCK. */
+    private static void expunge() {
+        for (Object id = KEYS.poll(); id != null; id = KEYS.poll()) {
+            Charge charge = CHARGES.get(id);
+            if (charge != null && charge._id == id) {
+                remove(charge);
+            }
+        }
+    }
+
+    /** Return the charges to evict so that CHARGE fits, or null if it
+     *  cannot be made to fit without evicting something worth more. */
+    private static List<Charge> makeRoom(Charge charge) {
+        Space space = charge._space;
+        long cap = cap(space);
+        if (charge._bytes > cap) {
+            return null;
+        }
+        List<Charge> victims = new ArrayList<>();
+        long need = HELD.get(space) + charge._bytes - cap;
+        ArrayList<Charge> all = ALL.get(space);
+        _reservations += 1;
+        if (_reservations % AGE_PERIOD == 0) {
+            for (Charge c : all) {
+                c._uses /= 2;
+            }
+        }
+        while (need > 0) {
+            Charge victim = null;
+            for (int i = 0; i < SAMPLE && victims.size() < all.size();
+                 i++) {
+                Charge c = all.get(RANDOM.nextInt(all.size()));
+                if (!c._chosen && (victim == null
+                                   || c.value() < victim.value())) {
+                    victim = c;
+                }
+            }
+            if (victim == null) {
+                for (Charge c : all) {
+                    if (!c._chosen) {
+                        victim = c;
+                        break;
+                    }
+                }
+            }
+            if (victim == null || victim.value() > charge.value()) {
+                break;
+            }
+            victim._chosen = true;
+            victims.add(victim);
+            need -= victim._bytes;
+        }
+        for (Charge victim : victims) {
+            victim._chosen = false;
+        }
+        return need > 0 ? null : victims;
+    }
+
+    /** Record CHARGE as held.  Must hold LOCK. */
+    private static void add(Charge charge) {
+        HELD.merge(charge._space, charge._bytes, Long::sum);
+        if (charge._id == null) {
+            charge._index = 0;
+            return;
+        }
+        ArrayList<Charge> all = ALL.get(charge._space);
+        charge._index = all.size();
+        all.add(charge);
+        CHARGES.put(charge._id, charge);
+    }
+
+    /** Record CHARGE as no longer held.  Must hold LOCK. */
+    private static void remove(Charge charge) {
+        HELD.merge(charge._space, -charge._bytes, Long::sum);
+        if (charge._id == null) {
+            charge._index = -1;
+            return;
+        }
+        ArrayList<Charge> all = ALL.get(charge._space);
+        Charge last = all.remove(all.size() - 1);
+        if (last != charge) {
+            all.set(charge._index, last);
+            last._index = charge._index;
+        }
+        charge._index = -1;
+        CHARGES.remove(charge._id);
+    }
+
+    /** Memory reserved for one cache entry, or for working memory. */
+    static final class Charge {
+        /** A charge for the entry identified by ID, or for working
+         *  memory if ID is null, holding BYTES bytes in SPACE and taking
+         *  about COST nanoseconds to rebuild. */
+        private Charge(Id id, long bytes, Space space, long cost) {
+            _id = id;
+            _bytes = Math.max(bytes, 1);
+            _space = space;
+            _cost = Math.max(cost, 1);
+            _index = -1;
+        }
+
+        /** Note a use of my entry.  Uses are counted without
+         *  synchronization, so some may be lost. */
+        void used() {
+            _uses += 1;
+        }
+
+        /** Note that rebuilding my entry took NANOS nanoseconds. */
+        void cost(long nanos) {
+            _cost = Math.max(nanos, 1);
+        }
+
+        /** Return the key of my entry, under which its owner should keep
+         *  it, or null if it is no longer reachable or I am for working
+         *  memory. */
+        Object key() {
+            return _id == null ? null : _id.get();
+        }
+
+        /** Return true iff I am still held, not released or evicted. */
+        boolean live() {
+            synchronized (LOCK) {
+                return _index >= 0;
+            }
+        }
+
+        /** Give up my bytes, as when my owner drops my entry itself.
+         *  Does nothing if I have been released or evicted already. */
+        void release() {
+            synchronized (LOCK) {
+                if (_index >= 0) {
+                    remove(this);
+                }
+            }
+        }
+
+        /** Return the value of keeping my entry per byte. */
+        private double value() {
+            return (double) _cost * (_uses + 1) / _bytes;
+        }
+
+        /** The entry charged, or null for working memory. */
+        private final Id _id;
+        /** Bytes held. */
+        private final long _bytes;
+        /** Where the bytes are held. */
+        private final Space _space;
+        /** Nanoseconds to rebuild my entry. */
+        private volatile long _cost;
+        /** Uses of my entry, halved from time to time. */
+        private long _uses;
+        /** My index in ALL.get(_space), 0 if I am held working memory,
+         *  or -1 if I am not held. */
+        private int _index;
+        /** True iff I have been chosen for eviction by makeRoom. */
+        private boolean _chosen;
+    }
+
+    /** The identity of a cache entry: its owner and its key, both
+     *  held weakly.  An Id is queued on KEYS once its key is no longer
+     *  reachable. */
+    private static final class Id extends WeakReference<Object> {
+        /** The entry under KEY of OWNER. */
+        Id(Owner owner, Object key) {
+            super(key, KEYS);
+            _owner = new WeakReference<>(owner);
+            _hash = System.identityHashCode(owner) * HASH_PRIME
+                + key.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return _hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this) {
+                return true;
+            } else if (!(obj instanceof Id)) {
+                return false;
+            }
+            Id other = (Id) obj;
+            Object key = get();
+            Owner owner = _owner.get();
+            return key != null && owner != null && _hash == other._hash
+                && owner == other._owner.get() && key.equals(other.get());
+        }
+
+        /** The owning cache. */
+        private final WeakReference<Owner> _owner;
+        /** My hash code, fixed while my key and owner were reachable. */
+        private final int _hash;
+    }
+
+    /** Default fraction of the maximum heap that may be reserved: 1/4. */
+    private static final int HEAP_FRACTION = 4;
+    /** Default limit on bytes reserved outside the heap. */
+    private static final long DEFAULT_OFF_HEAP = 1L << 30;
+    /** Charges sampled when choosing each one to evict. */
+    private static final int SAMPLE = 8;
+    /** Reservations between halvings of the uses. */
+    private static final int AGE_PERIOD = 1 << 10;
+    /** Multiplier for combining hash codes. */
+    private static final int HASH_PRIME = 31;
+    /** Rough nanoseconds to compute one entry of a table. */
+    private static final long ENTRY_NANOS = 20;
+
+    /** Guards the fields below and the charges' fields other than
+     *  _uses and _cost. */
+    private static final Object LOCK = new Object();
+    /** The charges held, by identity. */
+    private static final Map<Id, Charge> CHARGES = new HashMap<>();
+    /** The charges held in each space, in no particular order. */
+    private static final EnumMap<Space, ArrayList<Charge>> ALL =
+        new EnumMap<>(Space.class);
+    /** Bytes held in each space. */
+    private static final EnumMap<Space, Long> HELD =
+        new EnumMap<>(Space.class);
+    static {
+        for (Space space : Space.values()) {
+            ALL.put(space, new ArrayList<>());
+            HELD.put(space, 0L);
+        }
+    }
+    /** The Ids whose keys are no longer reachable. */
+    private static final ReferenceQueue<Object> KEYS =
+        new ReferenceQueue<>();
+    /** Chooses the charges sampled for eviction. */
+    private static final SplittableRandom RANDOM = new SplittableRandom();
+    /** Number of new charges considered so far. */
+    private static long _reservations;
+}
@@ -0,0 +1,87 @@
+package enigma;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import static enigma.EnigmaException.*;
+
+/** Enigma simulator for binary data.
+ *  @author Haoqing Xuan
+ */
+public final class ByteMain {
+
+    /** Encrypt or decrypt a binary file, as specified by ARGS, where
+     *  ARGS.length is 4.  ARGS[0] is the name of a configuration file
+     *  whose alphabet is Alphabet.BYTES_NAME.  ARGS[1] is a settings
+     *  line in the format accepted by Main, with settings and plugboard
+     *  written as in Alphabet.decode, such as "* B I II III 414141".
+     *  ARGS[2] names the input file and ARGS[3] the output file.  Every
+     *  byte of the input is converted, with no character decoding.
+     *  Exits normally if there are no errors; otherwise with code 1. */
+    public static void main(String... args) {
+        try {
+            new ByteMain(args).process();
+            return;
+        } catch (EnigmaException excp) {
+            System.err.printf("Error: %s%n", excp.getMessage());
+        }
+        System.exit(1);
+    }
+
+    /** Check ARGS and set up the machine (see comment on main). */
+    ByteMain(String[] args) {
+        if (args.length != 4) {
+            throw error("Exactly 4 command-line arguments allowed");
+        }
+        Main main = new Main(Main.getInput(args[0]), null, null);
+        _machine = main.machine();
+        if (!_machine.alphabet().isBytes()) {
+            throw error("alphabet must be %s", Alphabet.BYTES_NAME);
+        }
+        if (!args[1].startsWith("*")) {
+            throw error("wrong settings format");
+        }
+        main.setUp(_machine, args[1]);
+        _inputName = args[2];
+        _outputName = args[3];
+    }
+
+    /** Convert the input file into the output file, a buffer at a
+     *  time, passing the bytes straight between the channels and the
+     *  machine. */
+    void process() {
+        try (FileChannel in = FileChannel.open(Paths.get(_inputName));
+             FileChannel out = FileChannel.open(Paths.get(_outputName),
+                 StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                 StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            while (in.read(buf) >= 0) {
+                buf.flip();
+                _machine.convert(buf);
+                buf.flip();
+                while (buf.hasRemaining()) {
+                    out.write(buf);
+                }
+                buf.clear();
+            }
+        } catch (IOException excp) {
+            throw error("could not copy %s to %s", _inputName, _outputName);
+        }
+    }
+
+    /** Size of the transfer buffer in bytes. */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /** The configured machine. */
+    private final Machine _machine;
+
+    /** Name of the input file. */
+    private final String _inputName;
+
+    /** Name of the output file. */
+    private final String _outputName;
+}
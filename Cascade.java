@@ -0,0 +1,332 @@
+package enigma;
+
+import java.io.PrintStream;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static enigma.EnigmaException.*;
+
+/** Several machines chained so that the output of each is the input of
+ *  the next, as in double encipherment.  Every stage steps once per
+ *  character.  Each stage is compiled and, where possible, converts
+ *  through its StateTable, so a stage costs two lookups per character.
+ *  Where the stages' tables are small enough, they are fused into one
+ *  table over the stages' combined states, and the whole cascade costs
+ *  two lookups per character, as a single machine does.
+ *  @author Haoqing Xuan
+ */
+final class Cascade {
+
+    /** Process messages through a cascade, as specified by ARGS, where
+     *  1 <= ARGS.length <= 3 after an optional leading --preserve (as for
+     *  Main).  ARGS[0] names the stages' configuration files, separated
+     *  by commas, in the order the stages are applied.  ARGS[1] and
+     *  ARGS[2] name the input and output files, as for Main.  Settings
+     *  lines give one settings line per stage, separated by "|", as in
+     *      * B Beta III IV I AXLE (HQ) | * C Gamma I II III AAA
+     *  and message lines are converted by every stage in turn.  Exits
+     *  normally if there are no errors in the input; otherwise with
+     *  code 1. */
+    public static void main(String... args) {
+        try {
+            boolean preserve = args.length > 0
+                && args[0].equals("--preserve");
+            int first = preserve ? 1 : 0;
+            if (args.length - first < 1 || args.length - first > 3) {
+                throw error("Only 1, 2, or 3 command-line arguments"
+                            + " allowed");
+            }
+            List<Machine> stages = new ArrayList<>();
+            for (String config : args[first].split(",")) {
+                stages.add(Registry.machine(config));
+            }
+            Cascade cascade = new Cascade(stages);
+            cascade.setPassthrough(preserve);
+            Scanner input = args.length - first > 1
+                ? Main.getInput(args[first + 1])
+                : new Scanner(System.in, StandardCharsets.UTF_8);
+            PrintStream output = args.length - first > 2
+                ? Main.getOutput(args[first + 2]) : System.out;
+            cascade.process(input, output);
+            output.flush();
+            return;
+        } catch (EnigmaException excp) {
+            System.err.printf("Error: %s%n", excp.getMessage());
+        }
+        System.exit(1);
+    }
+
+    /** A cascade of STAGES, applied in order, which must all have the
+     *  same alphabet.  The stages are used, not copied. */
+    Cascade(List<Machine> stages) {
+        if (stages.isEmpty()) {
+            throw error("a cascade needs at least one stage");
+        }
+        _stages = stages.toArray(new Machine[0]);
+        _alphabet = _stages[0].alphabet();
+        _size = _alphabet.size();
+        for (Machine stage : _stages) {
+            Alphabet alpha = stage.alphabet();
+            if (alpha.size() != _size) {
+                throw error("cascade stages have different alphabets");
+            }
+            for (int i = 0; i < _size; i++) {
+                if (alpha.toChar(i) != _alphabet.toChar(i)) {
+                    throw error("cascade stages have different alphabets");
+                }
+            }
+        }
+    }
+
+    /** Return the number of stages. */
+    int stages() {
+        return _stages.length;
+    }
+
+    /** Return stage K, numbering from 0. */
+    Machine stage(int k) {
+        return _stages[k];
+    }
+
+    /** Set passthrough mode to ON, as for Machine.setPassthrough. */
+    void setPassthrough(boolean on) {
+        _passthrough = on;
+    }
+
+    /** Set up every stage from LINE, which holds a settings line for
+     *  each stage, in order, separated by "|". */
+    void setUp(String line) {
+        String[] parts = line.split("\\|");
+        if (parts.length != _stages.length) {
+            throw error("expected %d settings lines", _stages.length);
+        }
+        for (int k = 0; k < parts.length; k++) {
+            new Settings(parts[k].trim(), _stages[k].numRotors())
+                .apply(_stages[k]);
+        }
+        _engines = null;
+    }
+
+    /** Apply me to the messages in INPUT, writing the results to OUTPUT
+     *  in the manner of Main.process. */
+    void process(Scanner input, PrintStream output) {
+        if (!input.hasNextLine()) {
+            return;
+        }
+        String line = input.nextLine();
+        if (!line.startsWith("*")) {
+            throw error("wrong input format");
+        }
+        setUp(line);
+        while (input.hasNextLine()) {
+            line = input.nextLine();
+            if (line.isEmpty()) {
+                output.println();
+            } else if (_passthrough ? line.startsWith("*")
+                       : line.contains("*")) {
+                setUp(line);
+            } else if (_passthrough) {
+                output.print(convert(line) + "\r\n");
+            } else {
+                output.print(Main.groups(convert(line)));
+            }
+        }
+    }
+
+    /** Return the conversion of MSG by every stage in turn, as for
+     *  Machine.convert(String), leaving each stage's rotors as they
+     *  would be had it converted its input alone. */
+    String convert(String msg) {
+        prepare();
+        if (!_passthrough) {
+            msg = msg.trim().replace(" ", "");
+        }
+        char[] chars = msg.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            int index = _alphabet.toInt(chars[i]);
+            if (index >= 0) {
+                chars[i] = _alphabet.toChar(convert(index));
+            } else if (!_passthrough) {
+                throw error("'%c' is not in the alphabet", chars[i]);
+            }
+        }
+        finish();
+        return new String(chars);
+    }
+
+    /** Return the conversion of index C by every stage in turn.  Must
+     *  be called between prepare() and finish(). */
+    private int convert(int c) {
+        if (_fused != null) {
+            _state = _fused._next[_state];
+            return _fused._subst[_state * _size + c];
+        }
+        for (CompiledMachine engine : _engines) {
+            c = engine.convert(c);
+        }
+        return c;
+    }
+
+    /** Compile every stage at its current settings, attaching tables
+     *  and fusing them where possible and the Budget allows, unless that
+     *  has been done since the stages were last set up. */
+    private void prepare() {
+        if (_engines != null) {
+            boolean reuse = true;
+            for (int k = 0; k < _stages.length; k++) {
+                reuse &= _engines[k].setPositions(_stages[k].positions());
+            }
+            if (reuse) {
+                if (_fused != null) {
+                    _state = jointState();
+                }
+                return;
+            }
+        }
+        _engines = new CompiledMachine[_stages.length];
+        StateTable[] tables = new StateTable[_stages.length];
+        StringBuilder key = new StringBuilder();
+        long joint = 1;
+        boolean tabulated = true;
+        for (int k = 0; k < _stages.length; k++) {
+            CompiledMachine engine = _stages[k].compile();
+            StateTable table = StateTable.get(engine);
+            engine.attach(table);
+            _engines[k] = engine;
+            tables[k] = table;
+            tabulated &= table != null;
+            if (tabulated) {
+                joint *= table.states();
+                tabulated = joint * _size <= FUSE_LIMIT;
+            }
+            key.append(engine.key()).append('|');
+        }
+        _fused = null;
+        if (tabulated) {
+            String name = key.toString();
+            long bytes = joint * (Integer.BYTES + Character.BYTES * _size);
+            Budget.Charge charge =
+                Budget.reserve(OWNER, name, bytes, Budget.Space.HEAP,
+                               Budget.estimate(joint * (_size + 1)));
+            String held = charge == null ? null : (String) charge.key();
+            if (held != null) {
+                _fused = FUSED.get(held);
+                if (_fused == null) {
+                    long start = System.nanoTime();
+                    _fused = FUSED.computeIfAbsent(held,
+                                                   k -> new Fused(tables,
+                                                                  _size));
+                    charge.cost(System.nanoTime() - start);
+                }
+                if (!charge.live()) {
+                    FUSED.remove(held);
+                }
+                _state = jointState();
+            }
+        }
+    }
+
+    /** Copy the engines' settings back to the stages. */
+    private void finish() {
+        if (_fused != null) {
+            int state = _state;
+            for (int k = _engines.length - 1; k >= 0; k--) {
+                int states = _fused._states[k];
+                _engines[k].setState(state % states);
+                state /= states;
+            }
+        }
+        for (int k = 0; k < _stages.length; k++) {
+            _stages[k].setPositions(_engines[k].positions());
+        }
+    }
+
+    /** Return the combined state of the engines in the fused table. */
+    private int jointState() {
+        int state = 0;
+        for (int k = 0; k < _engines.length; k++) {
+            state = state * _fused._states[k] + _engines[k].state();
+        }
+        return state;
+    }
+
+    /** A table of the combined behavior of several stages, each with a
+     *  StateTable, over all combinations of their states.  A combined
+     *  state reads the stages' states as digits, the first stage's
+     *  most significant. */
+    private static class Fused {
+        /** The fused table of stages with the StateTables TABLES and an
+         *  alphabet of SIZE characters. */
+        Fused(StateTable[] tables, int size) {
+            int n = tables.length;
+            _states = new int[n];
+            int joint = 1;
+            for (int k = 0; k < n; k++) {
+                _states[k] = tables[k].states();
+                joint *= _states[k];
+            }
+            _next = new int[joint];
+            _subst = new char[joint * size];
+            int[] digits = new int[n];
+            for (int state = 0; state < joint; state++) {
+                int next = 0;
+                for (int k = 0; k < n; k++) {
+                    next = next * _states[k] + tables[k].next(digits[k]);
+                }
+                _next[state] = next;
+                for (int c = 0; c < size; c++) {
+                    int x = c;
+                    for (int k = 0; k < n; k++) {
+                        x = tables[k].convert(digits[k], x);
+                    }
+                    _subst[state * size + c] = (char) x;
+                }
+                for (int k = n - 1; k >= 0; k--) {
+                    digits[k] += 1;
+                    if (digits[k] < _states[k]) {
+                        break;
+                    }
+                    digits[k] = 0;
+                }
+            }
+        }
+
+        /** Number of states of each stage. */
+        private final int[] _states;
+        /** _next[s] is the combined state following S. */
+        private final int[] _next;
+        /** _subst[s * size + c] is the conversion of C in state S. */
+        private final char[] _subst;
+    }
+
+    /** Most entries in a fused substitution table. */
+    private static final long FUSE_LIMIT = 1 << 24;
+
+    /** Fused tables already built, by the keys of their stages. */
+    private static final Map<String, Fused> FUSED =
+        new ConcurrentHashMap<>();
+
+    /** The Budget's owner of FUSED. */
+    private static final Budget.Owner OWNER = key -> FUSED.remove(key);
+
+    /** The stages, in order. */
+    private final Machine[] _stages;
+    /** The common alphabet. */
+    private final Alphabet _alphabet;
+    /** Size of the alphabet. */
+    private final int _size;
+    /** True iff convert passes characters not in the alphabet through. */
+    private boolean _passthrough;
+    /** The stages compiled, or null if not since they were set up. */
+    private CompiledMachine[] _engines;
+    /** The fused table of _engines, or null if there is none. */
+    private Fused _fused;
+    /** The combined state, while _fused is in use. */
+    private int _state;
+}
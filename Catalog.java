@@ -0,0 +1,617 @@
+package enigma;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import static enigma.EnigmaException.*;
+
+/** A catalog of the characteristics of a configuration, in the manner
+ *  of Rejewski.  When a message key is enciphered twice at the start of
+ *  each message, the first and fourth, second and fifth, and third and
+ *  sixth characters are related by the permutations AD, BE and CF, where
+ *  A .. F are the substitutions the machine applies to those six
+ *  characters from its starting settings.  The lengths of the cycles of
+ *  AD, BE and CF (the characteristic) depend only on the rotor order
+ *  and starting settings, not on the plugboard, and can be recovered
+ *  from a day's indicators.  The catalog lists, for every rotor order
+ *  and setting, the hash of its characteristic, sorted, so that the
+ *  orders and settings with a given characteristic can be found by
+ *  binary search.  The index file holds
+ *      MAGIC, VERSION                      (ints)
+ *      SHA-256 of the configuration file   (32 bytes)
+ *      number of rotor orders              (int)
+ *      the rotor orders                    (short length + UTF-8 each)
+ *      number of entries                   (long)
+ *      the entries, sorted                 (longs)
+ *  where each entry holds the hash in its upper 32 bits and, in its lower
+ *  32 bits, ORDER * settings + SETTING, SETTING being the settings of
+ *  slots 1 on, read as digits in base alphabet size.
+ *  @author Haoqing Xuan
+ */
+final class Catalog {
+
+    /** Build or search a catalog, as specified by ARGS.
+     *      -b CONFIG INDEX [ROTOR...]
+     *  catalogs every rotor order of the configuration file CONFIG, or
+     *  only those using the named ROTORs, into the file INDEX.
+     *      -q CONFIG INDEX SIGNATURE
+     *  prints every rotor order and setting in INDEX whose
+     *  characteristic is SIGNATURE, written as by signature().
+     *      -i CONFIG INDEX INDICATORS
+     *  does the same for the characteristic of the doubly enciphered
+     *  message keys in the file INDICATORS, one per line.  Matches are
+     *  printed as settings lines.  Exits normally if there are no
+     *  errors; otherwise with code 1. */
+    public static void main(String... args) {
+        try {
+            if (args.length >= 3 && args[0].equals("-b")) {
+                long start = System.nanoTime();
+                Catalog catalog = new Catalog(args[1]);
+                long entries = catalog.build(Paths.get(args[2]),
+                    Arrays.asList(args).subList(3, args.length));
+                System.out.printf("%d entries in %.3f s%n", entries,
+                                  (System.nanoTime() - start) / 1e9);
+            } else if (args.length == 4 && (args[0].equals("-q")
+                                             || args[0].equals("-i"))) {
+                Catalog catalog = new Catalog(args[1]);
+                String signature = args[0].equals("-q") ? args[3]
+                    : catalog.signature(indicators(args[3]));
+                for (String match
+                         : catalog.lookup(Paths.get(args[2]), signature)) {
+                    System.out.println(match);
+                }
+            } else {
+                throw error("usage: Catalog -b CONFIG INDEX [ROTOR...]"
+                            + " | -q CONFIG INDEX SIGNATURE"
+                            + " | -i CONFIG INDEX INDICATORS");
+            }
+            return;
+        } catch (IOException excp) {
+            System.err.printf("Error: %s%n", excp.getMessage());
+        } catch (EnigmaException excp) {
+            System.err.printf("Error: %s%n", excp.getMessage());
+        }
+        System.exit(1);
+    }
+
+    /** A catalog of the configuration in the file named CONFIG. */
+    Catalog(String config) {
+        try {
+            _configText = Files.readAllBytes(Paths.get(config));
+        } catch (IOException excp) {
+            throw error("could not open %s", config);
+        }
+        _machine = Registry.machine(_configText);
+        _alphabet = _machine.alphabet();
+        _size = _alphabet.size();
+        long settings = 1;
+        for (int i = 1; i < _machine.numRotors(); i++) {
+            settings *= _size;
+            if (settings > Integer.MAX_VALUE) {
+                throw error("too many rotor settings to catalog");
+            }
+        }
+        _settings = (int) settings;
+    }
+
+    /** Return the lines of the file named NAME, less blank ones. */
+    private static List<String> indicators(String name) throws IOException {
+        List<String> result = new ArrayList<>();
+        for (String line : Files.readAllLines(Paths.get(name))) {
+            if (!line.isBlank()) {
+                result.add(line.trim());
+            }
+        }
+        return result;
+    }
+
+    /** Write to INDEX the catalog of every rotor order that uses only
+     *  the rotors named in ROTORS, or of every order if ROTORS is empty,
+     *  computing the orders in parallel.  Each order's entries are
+     *  sorted into a run in a scratch file beside INDEX, and the runs
+     *  are then merged into INDEX, so that only the entries of the
+     *  orders being computed are in memory at once.  That memory is
+     *  charged to the Budget; fewer orders are computed at once if it
+     *  has no room for one per thread.  Return the number of
+     *  entries. */
+    long build(Path index, List<String> rotors) throws IOException {
+        List<String[]> orders = orders(_machine, new HashSet<>(rotors));
+        if ((long) orders.size() * _settings > Integer.MAX_VALUE) {
+            throw error("too many entries to catalog");
+        }
+        int workers = Math.min(orders.size(),
+                               Runtime.getRuntime().availableProcessors());
+        Budget.Charge charge = reserve(workers, orders.size());
+        while (charge == null && workers > 1) {
+            workers /= 2;
+            charge = reserve(workers, orders.size());
+        }
+        if (charge == null) {
+            throw error("memory budget has no room to catalog a rotor"
+                        + " order");
+        }
+        Path runs = index.resolveSibling(index.getFileName() + ".runs");
+        try (FileChannel scratch = FileChannel.open(runs,
+                 StandardOpenOption.READ, StandardOpenOption.WRITE,
+                 StandardOpenOption.CREATE,
+                 StandardOpenOption.TRUNCATE_EXISTING,
+                 StandardOpenOption.DELETE_ON_CLOSE)) {
+            AtomicInteger next = new AtomicInteger();
+            IntStream.range(0, workers).parallel().forEach(w -> {
+                long[] run = new long[_settings];
+                ByteBuffer data = ByteBuffer.allocate(BUFFER_BYTES);
+                for (int k = next.getAndIncrement(); k < orders.size();
+                     k = next.getAndIncrement()) {
+                    Machine machine = _machine.copy();
+                    machine.insertRotors(orders.get(k));
+                    catalog(machine, k, run);
+                    Arrays.sort(run);
+                    try {
+                        write(scratch, run, (long) k * _settings * Long.BYTES,
+                              data);
+                    } catch (IOException excp) {
+                        throw new UncheckedIOException(excp);
+                    }
+                }
+            });
+            merge(scratch, orders.size(), header(orders), index);
+        } catch (UncheckedIOException excp) {
+            throw excp.getCause();
+        } finally {
+            charge.release();
+        }
+        return (long) orders.size() * _settings;
+    }
+
+    /** Return a charge for the memory build uses with WORKERS orders
+     *  computed at once and RUNS runs to merge, or null if the Budget has
+     *  no room for it.  It is held as working memory, which evicts only
+     *  entries worth less than computing that many orders' entries and
+     *  is never evicted itself. */
+    private Budget.Charge reserve(int workers, int runs) {
+        long bytes = Math.max((long) workers * _settings * Long.BYTES,
+                              (long) runs * MERGE_BYTES);
+        return Budget.hold(bytes, Budget.Space.HEAP,
+                           Budget.estimate((long) workers * _settings));
+    }
+
+    /** Write ENTRIES to OUT starting at POSITION, through DATA. */
+    private static void write(FileChannel out, long[] entries, long position,
+                              ByteBuffer data) throws IOException {
+        data.clear();
+        for (int i = 0; i < entries.length; i++) {
+            data.putLong(entries[i]);
+            if (!data.hasRemaining() || i == entries.length - 1) {
+                data.flip();
+                while (data.hasRemaining()) {
+                    position += out.write(data, position);
+                }
+                data.clear();
+            }
+        }
+    }
+
+    /** Write HEADER and then the RUNS sorted runs of entries in SCRATCH,
+     *  each of _settings entries, merged into one sorted run, to
+     *  INDEX. */
+    private void merge(FileChannel scratch, int runs, ByteBuffer header,
+                       Path index) throws IOException {
+        ByteBuffer[] buffers = new ByteBuffer[runs];
+        long[] positions = new long[runs];
+        long[] ends = new long[runs];
+        long[] heads = new long[runs];
+        PriorityQueue<Integer> queue =
+            new PriorityQueue<>(runs, Comparator.comparingLong(r -> heads[r]));
+        for (int r = 0; r < runs; r++) {
+            buffers[r] = ByteBuffer.allocate(MERGE_BYTES).limit(0);
+            positions[r] = (long) r * _settings * Long.BYTES;
+            ends[r] = positions[r] + (long) _settings * Long.BYTES;
+            heads[r] = nextEntry(scratch, buffers[r], positions, ends, r);
+            queue.add(r);
+        }
+        try (FileChannel out = FileChannel.open(index,
+                 StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                 StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (header.hasRemaining()) {
+                out.write(header);
+            }
+            ByteBuffer data = ByteBuffer.allocateDirect(BUFFER_BYTES);
+            while (!queue.isEmpty()) {
+                int r = queue.poll();
+                data.putLong(heads[r]);
+                if (buffers[r].hasRemaining() || positions[r] < ends[r]) {
+                    heads[r] = nextEntry(scratch, buffers[r], positions,
+                                         ends, r);
+                    queue.add(r);
+                }
+                if (!data.hasRemaining() || queue.isEmpty()) {
+                    data.flip();
+                    while (data.hasRemaining()) {
+                        out.write(data);
+                    }
+                    data.clear();
+                }
+            }
+        }
+    }
+
+    /** Return the next entry of run R in IN, read through BUFFER, which
+     *  is refilled from POSITIONS[R], short of ENDS[R], when empty. */
+    private static long nextEntry(FileChannel in, ByteBuffer buffer,
+                                  long[] positions, long[] ends, int r)
+        throws IOException {
+        if (!buffer.hasRemaining()) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(),
+                                        ends[r] - positions[r]));
+            while (buffer.hasRemaining()) {
+                int n = in.read(buffer, positions[r]);
+                if (n < 0) {
+                    throw new IOException("catalog run is truncated");
+                }
+                positions[r] += n;
+            }
+            buffer.flip();
+        }
+        return buffer.getLong();
+    }
+
+    /** Fill in RUN with the entries for rotor order number ORDER, whose
+     *  rotors are inserted in MACHINE, by setting.  The non-moving
+     *  rotors are folded into a CompiledMachine once for each of their
+     *  settings. */
+    private void catalog(Machine machine, int order, long[] run) {
+        int moving = machine.numPawls();
+        int states = 1;
+        for (int k = 0; k < moving; k++) {
+            states *= _size;
+        }
+        int fixedSettings = _settings / states;
+        int[] posns = new int[machine.numRotors()];
+        for (int f = 0; f < fixedSettings; f++) {
+            int rest = f;
+            for (int i = posns.length - moving - 1; i > 0; i--) {
+                posns[i] = rest % _size;
+                rest /= _size;
+            }
+            machine.setPositions(posns);
+            CompiledMachine engine = machine.compile();
+            for (int s = 0; s < states; s++) {
+                engine.setState(s);
+                int setting = f * states + s;
+                int entry = order * _settings + setting;
+                run[setting] =
+                    ((long) signature(engine).hashCode() << Integer.SIZE)
+                    | (entry & ENTRY_MASK);
+            }
+        }
+    }
+
+    /** Return the characteristic of ENGINE from its current settings,
+     *  which are left changed. */
+    private String signature(CompiledMachine engine) {
+        Permutation[] subst = new Permutation[KEY_LENGTH * 2];
+        for (int i = 0; i < subst.length; i++) {
+            engine.step();
+            int[] forward = new int[_size];
+            for (int c = 0; c < _size; c++) {
+                forward[c] = engine.encipher(c);
+            }
+            subst[i] = new Permutation(forward, _alphabet);
+        }
+        Permutation[] products = new Permutation[KEY_LENGTH];
+        for (int i = 0; i < KEY_LENGTH; i++) {
+            products[i] = subst[i].compose(subst[i + KEY_LENGTH]);
+        }
+        return signature(products);
+    }
+
+    /** Return the characteristic of the doubly enciphered message keys
+     *  INDICATORS, each of which holds the first 2 * KEY_LENGTH
+     *  characters of a message.  There must be enough of them to
+     *  determine AD, BE and CF completely. */
+    String signature(List<String> indicators) {
+        Permutation[] products = new Permutation[KEY_LENGTH];
+        for (int i = 0; i < KEY_LENGTH; i++) {
+            int[] forward = new int[_size];
+            Arrays.fill(forward, -1);
+            for (String ind : indicators) {
+                if (ind.length() < 2 * KEY_LENGTH) {
+                    throw error("indicator %s is too short", ind);
+                }
+                int from = index(ind.charAt(i));
+                int to = index(ind.charAt(i + KEY_LENGTH));
+                if (forward[from] >= 0 && forward[from] != to) {
+                    throw error("indicators are inconsistent");
+                }
+                forward[from] = to;
+            }
+            for (int x : forward) {
+                if (x < 0) {
+                    throw error("not enough indicators");
+                }
+            }
+            products[i] = new Permutation(forward, _alphabet);
+        }
+        return signature(products);
+    }
+
+    /** Return the characteristic of the permutations PRODUCTS: for each,
+     *  the lengths of its cycles in decreasing order, separated by
+     *  periods, the products being separated by slashes, as in
+     *  "13.13/10.10.3.3/5.5.4.4.2.2.1.1.1.1". */
+    static String signature(Permutation[] products) {
+        StringBuilder result = new StringBuilder();
+        for (Permutation p : products) {
+            if (result.length() > 0) {
+                result.append('/');
+            }
+            int[][] cycles = p.cycleDecomposition();
+            int[] lengths = new int[cycles.length];
+            for (int i = 0; i < cycles.length; i++) {
+                lengths[i] = cycles[i].length;
+            }
+            Arrays.sort(lengths);
+            for (int i = lengths.length - 1; i >= 0; i--) {
+                result.append(lengths[i]);
+                if (i > 0) {
+                    result.append('.');
+                }
+            }
+        }
+        return result.toString();
+    }
+
+    /** Return the settings lines, without plugboards, of every rotor
+     *  order and setting in the catalog INDEX whose characteristic is
+     *  SIGNATURE.  Entries whose characteristic merely has the same
+     *  hash are checked and left out. */
+    List<String> lookup(Path index, String signature) throws IOException {
+        List<String> result = new ArrayList<>();
+        try (FileChannel in = FileChannel.open(index)) {
+            ByteBuffer head = in.map(FileChannel.MapMode.READ_ONLY, 0,
+                                     Math.min(in.size(), MAX_HEADER));
+            List<String[]> orders = readHeader(head, index);
+            long count = head.getLong();
+            if (count != (long) orders.size() * _settings
+                || count > (in.size() - head.position()) / Long.BYTES) {
+                throw error("%s has a bad number of entries", index);
+            }
+            LongBuffer entries = in.map(FileChannel.MapMode.READ_ONLY,
+                head.position(), count * Long.BYTES).asLongBuffer();
+            long hash = (long) signature.hashCode() << Integer.SIZE;
+            int i = lowerBound(entries, hash);
+            for (; i < entries.limit()
+                     && (entries.get(i) & ~ENTRY_MASK) == hash; i++) {
+                long entry = entries.get(i) & ENTRY_MASK;
+                String[] order = orders.get((int) (entry / _settings));
+                int setting = (int) (entry % _settings);
+                if (signature.equals(signature(order, setting))) {
+                    result.add(settingsLine(order, setting));
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Return the characteristic of rotor order ORDER at SETTING. */
+    private String signature(String[] order, int setting) {
+        Machine machine = _machine.copy();
+        machine.insertRotors(order);
+        machine.setPositions(positions(setting));
+        return signature(machine.compile());
+    }
+
+    /** Return the settings line for rotor order ORDER at SETTING. */
+    private String settingsLine(String[] order, int setting) {
+        StringBuilder line = new StringBuilder("*");
+        for (String name : order) {
+            line.append(' ').append(name);
+        }
+        line.append(' ');
+        int[] posns = positions(setting);
+        for (int i = 1; i < posns.length; i++) {
+            _alphabet.encode(line, posns[i]);
+        }
+        return line.toString();
+    }
+
+    /** Return the rotor positions, by slot, encoded by SETTING. */
+    private int[] positions(int setting) {
+        int[] posns = new int[_machine.numRotors()];
+        for (int i = posns.length - 1; i > 0; i--) {
+            posns[i] = setting % _size;
+            setting /= _size;
+        }
+        return posns;
+    }
+
+    /** Return the index of the first entry of ENTRIES, which are sorted,
+     *  that is at least KEY. */
+    private static int lowerBound(LongBuffer entries, long key) {
+        int lo = 0;
+        int hi = entries.limit();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (entries.get(mid) < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /** Return every valid rotor order of MACHINE, by the rules of
+     *  Machine.insertRotors, as the names of the rotors in each slot,
+     *  using only rotors named in ONLY if it is not empty. */
+    static List<String[]> orders(Machine machine, Set<String> only) {
+        List<String[]> result = new ArrayList<>();
+        orders(machine, new String[machine.numRotors()], 0, new HashSet<>(),
+               only, result);
+        if (result.isEmpty()) {
+            throw error("no valid rotor orders");
+        }
+        return result;
+    }
+
+    /** Add to RESULT every valid completion of ORDER for MACHINE from
+     *  slot SLOT on, using rotors not in USED and, if ONLY is not empty,
+     *  in ONLY. */
+    private static void orders(Machine machine, String[] order, int slot,
+                               Set<String> used, Set<String> only,
+                               List<String[]> result) {
+        if (slot == order.length) {
+            result.add(order.clone());
+            return;
+        }
+        boolean moving = slot >= order.length - machine.numPawls();
+        for (Rotor r : machine.availableRotors()) {
+            if (used.contains(r.name())
+                || (!only.isEmpty() && !only.contains(r.name()))
+                || r.reflecting() != (slot == 0)
+                || r.rotates() != moving) {
+                continue;
+            }
+            order[slot] = r.name();
+            used.add(r.name());
+            orders(machine, order, slot + 1, used, only, result);
+            used.remove(r.name());
+        }
+    }
+
+    /** Return a buffer holding the index header for ORDERS, up to the
+     *  number of entries. */
+    private ByteBuffer header(List<String[]> orders) {
+        List<byte[]> names = new ArrayList<>();
+        int size = 3 * Integer.BYTES + HASH_BYTES + Long.BYTES;
+        for (String[] order : orders) {
+            byte[] name = String.join(" ", order)
+                .getBytes(StandardCharsets.UTF_8);
+            if (name.length > MAX_NAME) {
+                throw error("rotor names are too long to catalog");
+            }
+            names.add(name);
+            size += Short.BYTES + name.length;
+            if (size > MAX_HEADER) {
+                throw error("too many rotor orders to catalog");
+            }
+        }
+        ByteBuffer header = ByteBuffer.allocate(size);
+        header.putInt(MAGIC).putInt(VERSION).put(hash(_configText));
+        header.putInt(orders.size());
+        for (byte[] name : names) {
+            header.putShort((short) name.length).put(name);
+        }
+        header.putLong((long) orders.size() * _settings);
+        return header.flip();
+    }
+
+    /** Return the rotor orders in the header at the start of HEAD, read
+     *  from the file INDEX, leaving HEAD positioned at the number of
+     *  entries. */
+    private List<String[]> readHeader(ByteBuffer head, Path index) {
+        if (head.remaining() < 3 * Integer.BYTES + HASH_BYTES
+            || head.getInt() != MAGIC || head.getInt() != VERSION) {
+            throw error("%s is not a catalog", index);
+        }
+        byte[] hash = new byte[HASH_BYTES];
+        head.get(hash);
+        if (!Arrays.equals(hash, hash(_configText))) {
+            throw error("%s was made with another configuration", index);
+        }
+        int count = head.getInt();
+        if (count <= 0) {
+            throw error("%s has a bad number of rotor orders", index);
+        }
+        List<String[]> orders = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            if (head.remaining() < Short.BYTES) {
+                throw error("%s is truncated", index);
+            }
+            int length = Short.toUnsignedInt(head.getShort());
+            if (length > head.remaining()) {
+                throw error("%s is truncated", index);
+            }
+            byte[] name = new byte[length];
+            head.get(name);
+            orders.add(new String(name, StandardCharsets.UTF_8)
+                       .split(" "));
+        }
+        if (head.remaining() < Long.BYTES) {
+            throw error("%s is truncated", index);
+        }
+        return orders;
+    }
+
+    /** Return the index of CH, which must be in my alphabet. */
+    private int index(char ch) {
+        int result = _alphabet.toInt(ch);
+        if (result < 0) {
+            throw error("'%c' is not in the alphabet", ch);
+        }
+        return result;
+    }
+
+    /** Return the SHA-256 hash of DATA. */
+    private static byte[] hash(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (NoSuchAlgorithmException excp) {
+            throw error("SHA-256 is not available");
+        }
+    }
+
+    /** Length of a message key. */
+    static final int KEY_LENGTH = 3;
+
+    /** First word of every catalog. */
+    private static final int MAGIC = 0x454e4352;
+    /** Version of the layout. */
+    private static final int VERSION = 1;
+    /** Length of a SHA-256 hash in bytes. */
+    private static final int HASH_BYTES = 32;
+    /** Most bytes in the name of a rotor order. */
+    private static final int MAX_NAME = 0xffff;
+    /** Most bytes the header can take. */
+    private static final long MAX_HEADER = 1 << 24;
+    /** Size of the buffer used to write entries. */
+    private static final int BUFFER_BYTES = 1 << 16;
+    /** Size of the buffer used to read each run when merging. */
+    private static final int MERGE_BYTES = 1 << 13;
+    /** Mask selecting the entry number of an entry. */
+    private static final long ENTRY_MASK = 0xffffffffL;
+
+    /** The contents of the configuration file. */
+    private final byte[] _configText;
+    /** The configured machine; each rotor order uses a copy. */
+    private final Machine _machine;
+    /** The alphabet. */
+    private final Alphabet _alphabet;
+    /** Size of the alphabet. */
+    private final int _size;
+    /** Number of settings of each rotor order. */
+    private final int _settings;
+}
@@ -0,0 +1,422 @@
+package enigma;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import static enigma.EnigmaException.*;
+
+/** An Enigma machine specialized to one choice of rotors and plugboard.
+ *  Each rotor's wiring is copied into plain integer tables, and the
+ *  reflector and the non-moving rotors, whose settings never change
+ *  while a message is converted, are folded into a single table,
+ *  _core.  Converting a character is then a series of flat table
+ *  lookups, one pair per moving rotor, with no virtual calls.
+ *  @author Haoqing Xuan
+ */
+class CompiledMachine {
+
+    /** A CompiledMachine with the rotors, settings and plugboard that
+     *  MACHINE currently has. */
+    CompiledMachine(Machine machine) {
+        int numRotors = machine.numRotors();
+        _alphabet = machine.alphabet();
+        _size = _alphabet.size();
+        _moving = machine.numPawls();
+        _first = numRotors - _moving;
+        _stepping = machine.stepping();
+        for (int i = 0; i < numRotors; i++) {
+            if (machine.rotor(i) == null) {
+                throw error("rotors have not been inserted");
+            }
+        }
+
+        _wiring = new int[_moving * _size];
+        _inverse = new int[_moving * _size];
+        _notch = new boolean[_moving * _size];
+        _notches = new boolean[_moving][_size];
+        _posns = new int[_moving];
+        for (int k = 0; k < _moving; k++) {
+            Rotor r = machine.rotor(_first + k);
+            for (int p = 0; p < _size; p++) {
+                _wiring[k * _size + p] = r.permutation().permute(p);
+                _inverse[k * _size + p] = r.permutation().invert(p);
+                _notch[k * _size + p] = r.notchAt(p);
+                _notches[k][p] = r.notchAt(p);
+            }
+            _posns[k] = r.setting();
+        }
+        _next = _stepping == Stepping.DOUBLE ? null
+            : _stepping.next(_notches, _size);
+
+        _core = new int[_size];
+        for (int c = 0; c < _size; c++) {
+            int x = c;
+            for (int i = _first - 1; i >= 0; i--) {
+                x = machine.rotor(i).convertForward(x);
+            }
+            for (int i = 1; i < _first; i++) {
+                x = machine.rotor(i).convertBackward(x);
+            }
+            _core[c] = x;
+        }
+
+        _plug = new int[_size];
+        _plugInverse = new int[_size];
+        Permutation plugboard = machine.plugboard();
+        for (int c = 0; c < _size; c++) {
+            _plug[c] = plugboard == null ? c : plugboard.permute(c);
+            _plugInverse[c] = plugboard == null ? c : plugboard.invert(c);
+        }
+
+        long states = 1;
+        for (int k = 0; k < _moving && states <= MAX_ORBIT; k++) {
+            states *= _size;
+        }
+        _states = states;
+
+        _fixedPosns = new int[_first];
+        for (int i = 0; i < _first; i++) {
+            _fixedPosns[i] = machine.rotor(i).setting();
+        }
+    }
+
+    /** Return the settings of all rotors, indexed by slot, as for
+     *  Machine.positions(). */
+    int[] positions() {
+        if (_table != null) {
+            setState(_state);
+        }
+        int[] result = new int[_first + _moving];
+        System.arraycopy(_fixedPosns, 0, result, 0, _first);
+        System.arraycopy(_posns, 0, result, _first, _moving);
+        return result;
+    }
+
+    /** Set the moving rotors to the settings in POSITIONS, indexed by
+     *  slot as for positions().  Return false, changing nothing, if
+     *  POSITIONS gives the non-moving rotors settings other than mine. */
+    boolean setPositions(int[] positions) {
+        for (int i = 0; i < _first; i++) {
+            if (positions[i] != _fixedPosns[i]) {
+                return false;
+            }
+        }
+        System.arraycopy(positions, _first, _posns, 0, _moving);
+        if (_table != null) {
+            _state = 0;
+            for (int k = 0; k < _moving; k++) {
+                _state = _state * _size + _posns[k];
+            }
+        }
+        return true;
+    }
+
+    /** Return the size of my alphabet. */
+    int size() {
+        return _size;
+    }
+
+    /** Return the number of moving rotors. */
+    int moving() {
+        return _moving;
+    }
+
+    /** Return the current settings of the moving rotors as a single
+     *  number, reading them as digits in base size(), leftmost first. */
+    int state() {
+        if (_table != null) {
+            return _state;
+        }
+        int state = 0;
+        for (int k = 0; k < _moving; k++) {
+            state = state * _size + _posns[k];
+        }
+        return state;
+    }
+
+    /** Set the moving rotors to the settings encoded by STATE, as
+     *  returned by state(). */
+    void setState(int state) {
+        if (_table != null) {
+            _state = state;
+        }
+        for (int k = _moving - 1; k >= 0; k--) {
+            _posns[k] = state % _size;
+            state /= _size;
+        }
+    }
+
+    /** Convert with TABLE, which must have been built from a machine
+     *  with my key(), until it is replaced; TABLE may be null to go back
+     *  to my own tables. */
+    void attach(StateTable table) {
+        if (_table != null) {
+            setState(_state);
+            _table = null;
+        }
+        _state = state();
+        _table = table;
+    }
+
+    /** Return a string that identifies my wiring, notches, stepping
+     *  model and plugboard, but not my moving rotors' settings.  Two
+     *  CompiledMachines with the same key convert identically from the
+     *  same state(). */
+    String key() {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(_stepping.name().getBytes(StandardCharsets.UTF_8));
+            ByteBuffer buf = ByteBuffer.allocate(Integer.BYTES
+                * (2 + 2 * _wiring.length + _core.length + _plug.length));
+            buf.putInt(_size).putInt(_moving);
+            for (int i = 0; i < _wiring.length; i++) {
+                buf.putInt(_wiring[i]).putInt(_notch[i] ? 1 : 0);
+            }
+            for (int x : _core) {
+                buf.putInt(x);
+            }
+            for (int x : _plug) {
+                buf.putInt(x);
+            }
+            StringBuilder key = new StringBuilder();
+            for (byte b : digest.digest(buf.array())) {
+                key.append(String.format("%02x", b));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException excp) {
+            throw error("SHA-256 is not available");
+        }
+    }
+
+    /** Returns the result of converting the index C at the current
+     *  settings, without advancing the rotors. */
+    int encipher(int c) {
+        if (_table != null) {
+            return _table.convert(_state, c);
+        }
+        int n = _size;
+        int[] posns = _posns;
+        int[] wiring = _wiring;
+        int[] inverse = _inverse;
+        int x = _plug[c];
+        for (int k = _moving - 1; k >= 0; k--) {
+            int s = posns[k];
+            int p = x + s;
+            x = wiring[k * n + (p >= n ? p - n : p)] - s;
+            if (x < 0) {
+                x += n;
+            }
+        }
+        x = _core[x];
+        for (int k = 0; k < _moving; k++) {
+            int s = posns[k];
+            int p = x + s;
+            x = inverse[k * n + (p >= n ? p - n : p)] - s;
+            if (x < 0) {
+                x += n;
+            }
+        }
+        return _plugInverse[x];
+    }
+
+    /** Advance the moving rotors as Machine.convert(int) does.  For the
+     *  double-step model, the rightmost rotor always moves; any other
+     *  moving rotor moves when the rotor to its right is at a notch, or
+     *  when it is itself at a notch and the rotor to its left is a
+     *  moving rotor.  Other models use their next-state table where
+     *  they have one. */
+    void step() {
+        if (_stepping != Stepping.DOUBLE) {
+            if (_next != null) {
+                setState(_next[state()]);
+            } else {
+                _stepping.step(_posns, _notches, _size);
+            }
+            return;
+        }
+        int n = _size;
+        int last = _moving - 1;
+        if (last < 0) {
+            return;
+        }
+        boolean carry = false;
+        for (int k = 0; k < last; k++) {
+            boolean here = _notch[k * n + _posns[k]];
+            boolean right = _notch[(k + 1) * n + _posns[k + 1]];
+            if (right || (here && carry)) {
+                _posns[k] = _posns[k] + 1 == n ? 0 : _posns[k] + 1;
+            }
+            carry = true;
+        }
+        _posns[last] = _posns[last] + 1 == n ? 0 : _posns[last] + 1;
+    }
+
+    /** Advance the rotors N times, as converting N characters would,
+     *  but without converting anything.  For N larger than the
+     *  alphabet, the state is found on the orbit of the current state,
+     *  which I keep while the Budget has room for it.  The first advance
+     *  from a state not yet traced still steps min(N, P) times, where P
+     *  is the length of the orbit, up to the number of states; later
+     *  advances from any state already traced, as in repeated edits of
+     *  one document, go straight to their state. */
+    void advance(long n) {
+        if (n > _size && _states <= MAX_ORBIT) {
+            int state = state();
+            StateTable.Orbit orbit = _orbit;
+            int after = orbit == null ? -1 : orbit.stateAfter(state, n);
+            if (after < 0) {
+                orbit = trace(state);
+                after = orbit == null ? -1 : orbit.stateAfter(state, n);
+            }
+            if (after >= 0) {
+                setState(after);
+                return;
+            }
+        }
+        if (_table != null) {
+            for (long i = 0; i < n; i++) {
+                _state = _table.next(_state);
+            }
+            return;
+        }
+        for (long i = 0; i < n; i++) {
+            step();
+        }
+    }
+
+    /** Return a new orbit from STATE, kept as _orbit, or null if the
+     *  Budget has no room for it.  Its arrays take at most two ints per
+     *  state. */
+    private StateTable.Orbit trace(int state) {
+        _orbit = null;
+        Budget.Charge charge =
+            Budget.reserve(ORBITS, this, 2 * _states * Integer.BYTES,
+                           Budget.Space.HEAP, Budget.estimate(_states));
+        if (charge == null) {
+            return null;
+        }
+        StateTable.Orbit orbit =
+            new StateTable.Orbit(this::successor, (int) _states, state);
+        _orbit = orbit;
+        if (!charge.live()) {
+            _orbit = null;
+        }
+        return orbit;
+    }
+
+    /** Return the state that follows STATE, leaving my rotors in any
+     *  state. */
+    private int successor(int state) {
+        if (_table != null) {
+            return _table.next(state);
+        }
+        setState(state);
+        step();
+        return state();
+    }
+
+    /** Returns the result of converting the index C, after first
+     *  advancing the rotors. */
+    int convert(int c) {
+        if (_table != null) {
+            _state = _table.next(_state);
+            return _table.convert(_state, c);
+        }
+        step();
+        return encipher(c);
+    }
+
+    /** Returns the encoding/decoding of MSG, as for Machine.convert(String)
+     *  in passthrough mode iff PASSTHROUGH. */
+    String convert(String msg, boolean passthrough) {
+        if (!passthrough) {
+            msg = msg.trim().replace(" ", "");
+        }
+        char[] chars = msg.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            int index = _alphabet.toInt(chars[i]);
+            if (index >= 0) {
+                chars[i] = _alphabet.toChar(convert(index));
+            } else if (!passthrough) {
+                throw error("'%c' is not in the alphabet", chars[i]);
+            }
+        }
+        return new String(chars);
+    }
+
+    /** Convert the LEN bytes of DATA starting at OFF in place, as for
+     *  Machine.convert(byte[], int, int). */
+    void convert(byte[] data, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            data[i] = (byte) convert(data[i] & BYTE_MASK);
+        }
+    }
+
+    /** Convert the remaining bytes of BUF in place without changing its
+     *  position. */
+    void convert(ByteBuffer buf) {
+        for (int i = buf.position(); i < buf.limit(); i++) {
+            buf.put(i, (byte) convert(buf.get(i) & BYTE_MASK));
+        }
+    }
+
+    /** Mask selecting the unsigned value of a byte. */
+    private static final int BYTE_MASK = 0xff;
+
+    /** My alphabet. */
+    private final Alphabet _alphabet;
+    /** Most states of the moving rotors for which advance() traces
+     *  orbits. */
+    private static final int MAX_ORBIT = 1 << 22;
+    /** The Budget's owner of kept orbits, keyed by the CompiledMachine
+     *  keeping one. */
+    private static final Budget.Owner ORBITS =
+        key -> ((CompiledMachine) key)._orbit = null;
+
+    /** Size of my alphabet. */
+    private final int _size;
+    /** Number of moving rotors. */
+    private final int _moving;
+    /** Slot number of the leftmost moving rotor. */
+    private final int _first;
+    /** Wirings of the moving rotors at setting 0, left to right, each
+     *  occupying _size consecutive entries. */
+    private final int[] _wiring;
+    /** Inverses of the wirings in _wiring, laid out the same way. */
+    private final int[] _inverse;
+    /** _notch[k * _size + p] is true iff moving rotor K has a notch at
+     *  setting P. */
+    private final boolean[] _notch;
+    /** How the moving rotors step. */
+    private final Stepping _stepping;
+    /** _notches[k][p] is true iff moving rotor K has a notch at setting
+     *  P, as _stepping expects them. */
+    private final boolean[][] _notches;
+    /** _stepping's next-state table, or null for the double-step model
+     *  (stepped directly above) or if there are too many states. */
+    private final int[] _next;
+    /** Current settings of the moving rotors, left to right. */
+    private final int[] _posns;
+    /** Settings of the reflector and non-moving rotors. */
+    private final int[] _fixedPosns;
+    /** The combined mapping from the left edge of the moving rotors
+     *  through the non-moving rotors, the reflector, and back. */
+    private final int[] _core;
+    /** The plugboard mapping. */
+    private final int[] _plug;
+    /** The inverse of the plugboard mapping. */
+    private final int[] _plugInverse;
+    /** Table of every state's substitution, or null if not attached. */
+    private StateTable _table;
+    /** Current state() while _table is attached; _posns is then stale. */
+    private int _state;
+    /** Number of states of the moving rotors, or some number over
+     *  MAX_ORBIT if there are more than that. */
+    private final long _states;
+    /** The orbit last traced by advance(), or null.  The Budget may
+     *  drop it from another thread. */
+    private volatile StateTable.Orbit _orbit;
+}
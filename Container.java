@@ -0,0 +1,378 @@
+package enigma;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.Arrays;
+import java.util.Scanner;
+import java.util.stream.IntStream;
+
+import static enigma.EnigmaException.*;
+
+/** A block-indexed container of binary data encrypted with a machine
+ *  whose alphabet is Alphabet.BYTES_NAME.  The container records the
+ *  setting of every rotor at the start of each block, so any byte range
+ *  can be decrypted without converting what precedes it, and blocks
+ *  can be decrypted in parallel.  The layout is
+ *      MAGIC, VERSION                     (ints)
+ *      SHA-256 of the configuration file  (32 bytes)
+ *      the settings line                  (short length + UTF-8)
+ *      block size, rotor count            (ints)
+ *      plaintext length                   (long)
+ *      rotor settings at each block start (rotor count ints per block)
+ *      the ciphertext.
+ *  @author Haoqing Xuan
+ */
+final class Container {
+
+    /** Create or extract a container as specified by ARGS.
+     *      -c CONFIG SETTINGS INPUT OUTPUT [BLOCKSIZE]
+     *  encrypts INPUT into the container OUTPUT using the configuration
+     *  file CONFIG and the settings line SETTINGS.
+     *      -x CONFIG INPUT OUTPUT [OFFSET LENGTH]
+     *  decrypts the container INPUT into OUTPUT, or only the LENGTH
+     *  bytes starting at OFFSET.  Exits normally if there are no errors;
+     *  otherwise with code 1. */
+    public static void main(String... args) {
+        try {
+            if (args.length >= 5 && args.length <= 6
+                && args[0].equals("-c")) {
+                int blockSize = args.length > 5
+                    ? parseInt(args[5]) : DEFAULT_BLOCK;
+                create(args[1], args[2], Paths.get(args[3]),
+                       Paths.get(args[4]), blockSize);
+            } else if ((args.length == 4 || args.length == 6)
+                       && args[0].equals("-x")) {
+                Container c = new Container(args[1], Paths.get(args[2]));
+                if (args.length == 4) {
+                    c.extract(Paths.get(args[3]));
+                } else {
+                    byte[] data = c.read(parseLong(args[4]),
+                                         parseInt(args[5]));
+                    Files.write(Paths.get(args[3]), data);
+                }
+            } else {
+                throw error("usage: Container -c CONFIG SETTINGS INPUT"
+                            + " OUTPUT [BLOCKSIZE] | -x CONFIG INPUT"
+                            + " OUTPUT [OFFSET LENGTH]");
+            }
+            return;
+        } catch (IOException excp) {
+            System.err.printf("Error: %s%n", excp.getMessage());
+        } catch (EnigmaException excp) {
+            System.err.printf("Error: %s%n", excp.getMessage());
+        }
+        System.exit(1);
+    }
+
+    /** Write the container OUTPUT holding INPUT encrypted with the
+     *  configuration in the file named CONFIG and the settings line
+     *  SETTINGS, in blocks of BLOCKSIZE bytes. */
+    static void create(String config, String settings, Path input,
+                       Path output, int blockSize) throws IOException {
+        if (blockSize <= 0) {
+            throw error("block size must be positive");
+        }
+        if (!settings.startsWith("*")) {
+            throw error("wrong settings format");
+        }
+        if (settings.getBytes(StandardCharsets.UTF_8).length
+            > MAX_SETTINGS) {
+            throw error("settings line is too long");
+        }
+        byte[] configText = readConfig(config);
+        Main main = configure(configText);
+        Machine machine = main.machine();
+        main.setUp(machine, settings);
+
+        long length = Files.size(input);
+        long blockCount = blocks(length, blockSize);
+        if (blockCount * machine.numRotors() * Integer.BYTES
+            > Integer.MAX_VALUE - MAX_HEADER) {
+            throw error("%d-byte blocks are too small for %d bytes",
+                        blockSize, length);
+        }
+        int blocks = (int) blockCount;
+        ByteBuffer header = header(configText, settings, blockSize,
+                                   machine.numRotors(), length, blocks);
+        int indexStart = header.position();
+        long dataStart = indexStart
+            + (long) blocks * machine.numRotors() * Integer.BYTES;
+
+        try (FileChannel in = FileChannel.open(input);
+             FileChannel out = FileChannel.open(output,
+                 StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                 StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buf = ByteBuffer.allocateDirect(blockSize);
+            for (int b = 0; b < blocks; b++) {
+                for (int posn : machine.positions()) {
+                    header.putInt(posn);
+                }
+                buf.clear();
+                int n = 0;
+                while (buf.hasRemaining() && n >= 0) {
+                    n = in.read(buf);
+                }
+                buf.flip();
+                machine.convert(buf);
+                buf.flip();
+                long at = dataStart + (long) b * blockSize;
+                while (buf.hasRemaining()) {
+                    at += out.write(buf, at);
+                }
+            }
+            header.flip();
+            long at = 0;
+            while (header.hasRemaining()) {
+                at += out.write(header, at);
+            }
+        }
+    }
+
+    /** Return a buffer holding the header of a container for the
+     *  configuration CONFIGTEXT and settings line SETTINGS, with the
+     *  given BLOCKSIZE, ROTORS, plaintext LENGTH and number of BLOCKS,
+     *  positioned at the start of the (unfilled) index. */
+    private static ByteBuffer header(byte[] configText, String settings,
+                                     int blockSize, int rotors,
+                                     long length, int blocks) {
+        byte[] settingsBytes = settings.getBytes(StandardCharsets.UTF_8);
+        int size = 2 * Integer.BYTES + HASH_BYTES + Short.BYTES
+            + settingsBytes.length + 2 * Integer.BYTES + Long.BYTES
+            + blocks * rotors * Integer.BYTES;
+        ByteBuffer header = ByteBuffer.allocate(size);
+        header.putInt(MAGIC).putInt(VERSION).put(hash(configText));
+        header.putShort((short) settingsBytes.length).put(settingsBytes);
+        header.putInt(blockSize).putInt(rotors).putLong(length);
+        return header;
+    }
+
+    /** The container in FILE, which must have been created with the
+     *  configuration in the file named CONFIG.  Its header is checked
+     *  against the configuration and the size of FILE. */
+    Container(String config, Path file) throws IOException {
+        byte[] configText = readConfig(config);
+        _file = file;
+        _main = configure(configText);
+        _template = _main.machine();
+        try (FileChannel in = FileChannel.open(file)) {
+            long size = in.size();
+            ByteBuffer head = in.map(FileChannel.MapMode.READ_ONLY, 0,
+                                     Math.min(size, MAX_HEADER));
+            if (head.remaining() < FIXED_HEADER
+                || head.getInt() != MAGIC || head.getInt() != VERSION) {
+                throw error("%s is not a container", file);
+            }
+            byte[] hash = new byte[HASH_BYTES];
+            head.get(hash);
+            if (!Arrays.equals(hash, hash(configText))) {
+                throw error("%s was made with another configuration", file);
+            }
+            int settingsLength = Short.toUnsignedInt(head.getShort());
+            if (settingsLength > head.remaining() - FIXED_TAIL) {
+                throw error("%s is truncated", file);
+            }
+            byte[] settings = new byte[settingsLength];
+            head.get(settings);
+            _settings = new String(settings, StandardCharsets.UTF_8);
+            _blockSize = head.getInt();
+            int rotors = head.getInt();
+            _length = head.getLong();
+            if (_blockSize <= 0 || rotors != _template.numRotors()
+                || _length < 0) {
+                throw error("%s has a corrupt header", file);
+            }
+            long blocks = blocks(_length, _blockSize);
+            long entry = (long) rotors * Integer.BYTES;
+            if (blocks > (size - head.position()) / entry
+                || head.position() + blocks * entry + _length > size) {
+                throw error("%s is truncated", file);
+            }
+            if (blocks * entry > Integer.MAX_VALUE) {
+                throw error("%s has too many blocks", file);
+            }
+            ByteBuffer index = in.map(FileChannel.MapMode.READ_ONLY,
+                head.position(), blocks * entry);
+            _index = new int[(int) blocks][rotors];
+            int alphabetSize = _template.alphabet().size();
+            for (int[] posns : _index) {
+                for (int r = 0; r < rotors; r++) {
+                    posns[r] = index.getInt();
+                    if (posns[r] < 0 || posns[r] >= alphabetSize) {
+                        throw error("%s has a corrupt index", file);
+                    }
+                }
+            }
+            _dataStart = head.position() + blocks * entry;
+        }
+    }
+
+    /** Return the number of plaintext bytes in the container. */
+    long length() {
+        return _length;
+    }
+
+    /** Return the LEN bytes of plaintext starting at OFFSET, decrypting
+     *  only the blocks that contain them. */
+    byte[] read(long offset, int len) throws IOException {
+        if (offset < 0 || len < 0 || offset > _length - len) {
+            throw error("range out of bounds");
+        }
+        byte[] result = new byte[len];
+        int first = (int) (offset / _blockSize);
+        int last = (int) ((offset + len - 1) / _blockSize);
+        try (FileChannel in = FileChannel.open(_file)) {
+            for (int b = first; len > 0 && b <= last; b++) {
+                byte[] block = decrypt(in, b);
+                long blockStart = (long) b * _blockSize;
+                int from = (int) Math.max(0, offset - blockStart);
+                int to = (int) Math.min(block.length,
+                                        offset + len - blockStart);
+                System.arraycopy(block, from, result,
+                                 (int) (blockStart + from - offset),
+                                 to - from);
+            }
+        }
+        return result;
+    }
+
+    /** Decrypt the whole container into OUTPUT, decrypting blocks in
+     *  parallel. */
+    void extract(Path output) throws IOException {
+        try (FileChannel in = FileChannel.open(_file);
+             FileChannel out = FileChannel.open(output,
+                 StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                 StandardOpenOption.TRUNCATE_EXISTING)) {
+            IntStream.range(0, _index.length).parallel().forEach(b -> {
+                try {
+                    ByteBuffer block = ByteBuffer.wrap(decrypt(in, b));
+                    long at = (long) b * _blockSize;
+                    while (block.hasRemaining()) {
+                        at += out.write(block, at);
+                    }
+                } catch (IOException excp) {
+                    throw error("could not write %s", output);
+                }
+            });
+        }
+    }
+
+    /** Return block B of the plaintext, read from IN. */
+    private byte[] decrypt(FileChannel in, int b) throws IOException {
+        long start = (long) b * _blockSize;
+        ByteBuffer buf = ByteBuffer.allocate(
+            (int) Math.min(_blockSize, _length - start));
+        long at = _dataStart + start;
+        while (buf.hasRemaining()) {
+            int n = in.read(buf, at);
+            if (n < 0) {
+                throw error("%s is truncated", _file);
+            }
+            at += n;
+        }
+        Machine machine = _template.copy();
+        _main.setUp(machine, _settings);
+        machine.setPositions(_index[b]);
+        machine.convert(buf.array(), 0, buf.capacity());
+        return buf.array();
+    }
+
+    /** Return the number of BLOCKSIZE-byte blocks, the last perhaps
+     *  partial, that hold LENGTH bytes. */
+    private static long blocks(long length, int blockSize) {
+        return length / blockSize + (length % blockSize == 0 ? 0 : 1);
+    }
+
+    /** Return the contents of the configuration file named NAME. */
+    private static byte[] readConfig(String name) {
+        try {
+            return Files.readAllBytes(Paths.get(name));
+        } catch (IOException excp) {
+            throw error("could not open %s", name);
+        }
+    }
+
+    /** Return a Main configured by CONFIGTEXT, whose machine must have
+     *  the byte alphabet. */
+    private static Main configure(byte[] configText) {
+        Main main = new Main(new Scanner(new String(
+                                 configText, StandardCharsets.UTF_8)),
+                             null, null);
+        if (!main.machine().alphabet().isBytes()) {
+            throw error("alphabet must be %s", Alphabet.BYTES_NAME);
+        }
+        return main;
+    }
+
+    /** Return the SHA-256 hash of DATA. */
+    private static byte[] hash(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (NoSuchAlgorithmException excp) {
+            throw error("SHA-256 is not available");
+        }
+    }
+
+    /** Return S as an int, reporting an error if it is not one. */
+    private static int parseInt(String s) {
+        try {
+            return Integer.parseInt(s);
+        } catch (NumberFormatException excp) {
+            throw error("bad number: %s", s);
+        }
+    }
+
+    /** Return S as a long, reporting an error if it is not one. */
+    private static long parseLong(String s) {
+        try {
+            return Long.parseLong(s);
+        } catch (NumberFormatException excp) {
+            throw error("bad number: %s", s);
+        }
+    }
+
+    /** First word of every container. */
+    private static final int MAGIC = 0x454e4743;
+    /** Version of the layout. */
+    private static final int VERSION = 1;
+    /** Length of a SHA-256 hash in bytes. */
+    private static final int HASH_BYTES = 32;
+    /** Most bytes the settings line can take. */
+    private static final int MAX_SETTINGS = 0xffff;
+    /** Bytes of the header after the settings line, before the index. */
+    private static final int FIXED_TAIL = 2 * Integer.BYTES + Long.BYTES;
+    /** Bytes of a header with an empty settings line and no index. */
+    private static final int FIXED_HEADER =
+        2 * Integer.BYTES + HASH_BYTES + Short.BYTES + FIXED_TAIL;
+    /** Most bytes the header can take before the index. */
+    private static final int MAX_HEADER = FIXED_HEADER + MAX_SETTINGS;
+    /** Block size used when none is given. */
+    private static final int DEFAULT_BLOCK = 1 << 16;
+
+    /** The container file. */
+    private final Path _file;
+    /** The settings line the container was encrypted with. */
+    private final String _settings;
+    /** Bytes per block. */
+    private final int _blockSize;
+    /** Plaintext length. */
+    private final long _length;
+    /** _index[b] holds the rotor settings at the start of block B. */
+    private final int[][] _index;
+    /** Offset of the ciphertext in the file. */
+    private final long _dataStart;
+    /** The Main that parsed the configuration and applies settings. */
+    private final Main _main;
+    /** The configured machine, of which each block uses a copy. */
+    private final Machine _template;
+}
@@ -0,0 +1,312 @@
+package enigma;
+
+import java.io.IOException;
+import java.io.PrintStream;
+
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static enigma.EnigmaException.*;
+
+/** A crib: a guessed stretch of plaintext, and a scanner for the places
+ *  in ciphertext where it could sit.  An Enigma never converts a
+ *  character to itself, so a crib can only sit where none of its
+ *  characters equals the ciphertext character under it.  Every offset
+ *  is tested at once with a bitset, in the manner of the shift-and
+ *  string matcher: bit J of the state is set iff the last J+1
+ *  characters of ciphertext differ from the first J+1 characters of the
+ *  crib, so each ciphertext character costs a shift and a mask per 64
+ *  characters of crib.
+ *  @author Haoqing Xuan
+ */
+final class Crib {
+
+    /** Scan ciphertext as specified by ARGS: an optional --count, the
+     *  name of a configuration file, whose alphabet is used, a crib,
+     *  written as in Alphabet.decode, and one or more files or
+     *  directories, all of whose files are scanned.
+     *  Each feasible offset is printed as FILE:LINE:OFFSET, where OFFSET
+     *  counts the characters of the alphabet in the line before the
+     *  crib; with --count, only the number of feasible offsets in each
+     *  file is printed.  Files are scanned in parallel.  For a text
+     *  alphabet, files are read as UTF-8, each line is a message, lines
+     *  starting with "*" are settings lines and are skipped, and
+     *  characters not in the alphabet are ignored.  For the byte
+     *  alphabet, each file is one message of raw bytes.  Exits normally
+     *  if there are no errors; otherwise with code 1. */
+    public static void main(String... args) {
+        try {
+            boolean count = args.length > 0 && args[0].equals("--count");
+            int first = count ? 1 : 0;
+            if (args.length - first < 3) {
+                throw error("usage: Crib [--count] CONFIG CRIB FILE...");
+            }
+            Alphabet alphabet = Registry.machine(args[first]).alphabet();
+            Crib crib = new Crib(alphabet, alphabet.decode(args[first + 1]));
+            List<Path> files = new ArrayList<>();
+            for (int i = first + 2; i < args.length; i++) {
+                try (Stream<Path> walk = Files.walk(Paths.get(args[i]))) {
+                    files.addAll(walk.filter(Files::isRegularFile).sorted()
+                                 .collect(Collectors.toList()));
+                }
+            }
+            AtomicLong failed = new AtomicLong();
+            files.parallelStream().forEach(file -> {
+                try {
+                    crib.report(file, System.out, count);
+                } catch (IOException excp) {
+                    failed.incrementAndGet();
+                    System.err.printf("Error: %s: %s%n", file,
+                                      excp.getMessage());
+                }
+            });
+            System.out.flush();
+            if (failed.get() == 0) {
+                return;
+            }
+        } catch (IOException excp) {
+            System.err.printf("Error: %s%n", excp.getMessage());
+        } catch (EnigmaException excp) {
+            System.err.printf("Error: %s%n", excp.getMessage());
+        }
+        System.exit(1);
+    }
+
+    /** Receives the feasible offsets found by a scan. */
+    interface Hits {
+        /** Note that the crib could sit at character OFFSET of line
+         *  LINE, numbering lines from 1 and offsets from 0. */
+        void hit(long line, long offset);
+    }
+
+    /** The crib TEXT, whose characters must all be in ALPHABET. */
+    Crib(Alphabet alphabet, String text) {
+        if (text.isEmpty()) {
+            throw error("empty crib");
+        }
+        _alphabet = alphabet;
+        _bytes = alphabet.isBytes();
+        _length = text.length();
+        _words = (_length + Long.SIZE - 1) / Long.SIZE;
+        _allowed = new long[alphabet.size() * _words];
+        for (int c = 0; c < alphabet.size(); c++) {
+            for (int j = 0; j < _length; j++) {
+                if (text.charAt(j) != alphabet.toChar(c)) {
+                    _allowed[c * _words + j / Long.SIZE] |=
+                        1L << (j % Long.SIZE);
+                }
+            }
+        }
+        for (int j = 0; j < _length; j++) {
+            if (!alphabet.contains(text.charAt(j))) {
+                throw error("'%c' is not in the alphabet", text.charAt(j));
+            }
+        }
+        _ascii = new int[ASCII];
+        for (int b = 0; b < ASCII; b++) {
+            _ascii[b] = alphabet.toInt((char) b);
+        }
+        _state = new long[_words];
+    }
+
+    /** Return my length. */
+    int length() {
+        return _length;
+    }
+
+    /** Report the feasible offsets in FILE on OUT, one per line, or only
+     *  their number if COUNT. */
+    void report(Path file, PrintStream out, boolean count)
+        throws IOException {
+        StringBuilder lines = new StringBuilder();
+        long[] found = new long[1];
+        String name = file.toString();
+        copy().scan(file, (line, offset) -> {
+            found[0] += 1;
+            if (!count) {
+                lines.append(name).append(':').append(line).append(':')
+                    .append(offset).append('\n');
+                if (lines.length() >= FLUSH_CHARS) {
+                    synchronized (out) {
+                        out.append(lines);
+                    }
+                    lines.setLength(0);
+                }
+            }
+        });
+        if (count) {
+            lines.append(name).append(": ").append(found[0])
+                .append(" offsets\n");
+        }
+        synchronized (out) {
+            out.append(lines);
+        }
+    }
+
+    /** Return a crib like me with its own scanning state, for use on
+     *  another thread. */
+    Crib copy() {
+        return new Crib(this);
+    }
+
+    /** A copy of CRIB with its own scanning state. */
+    private Crib(Crib crib) {
+        _alphabet = crib._alphabet;
+        _bytes = crib._bytes;
+        _length = crib._length;
+        _words = crib._words;
+        _allowed = crib._allowed;
+        _ascii = crib._ascii;
+        _state = new long[_words];
+    }
+
+    /** Pass every feasible offset of the ciphertext in FILE, which is
+     *  mapped into memory a window at a time, to HITS. */
+    void scan(Path file, Hits hits) throws IOException {
+        try (FileChannel in = FileChannel.open(file,
+                                               StandardOpenOption.READ)) {
+            long size = in.size();
+            reset();
+            long line = 1, offset = 0;
+            boolean skip = false, start = true;
+            int pending = 0, ch = 0;
+            for (long base = 0; base < size; base += WINDOW) {
+                MappedByteBuffer window =
+                    in.map(FileChannel.MapMode.READ_ONLY, base,
+                           Math.min(WINDOW, size - base));
+                int n = window.limit();
+                for (int i = 0; i < n; i++) {
+                    int b = window.get(i) & BYTE_MASK;
+                    int c;
+                    if (_bytes) {
+                        c = b;
+                    } else if (b == '\n') {
+                        line += 1;
+                        offset = 0;
+                        skip = false;
+                        start = true;
+                        pending = 0;
+                        reset();
+                        continue;
+                    } else if (skip) {
+                        continue;
+                    } else if (b < ASCII) {
+                        if (start && b == '*') {
+                            skip = true;
+                            continue;
+                        }
+                        start = false;
+                        pending = 0;
+                        c = _ascii[b];
+                    } else if ((b & CONTINUATION_MASK) == CONTINUATION) {
+                        if (pending == 0) {
+                            continue;
+                        }
+                        ch = (ch << 6) | (b & ~CONTINUATION_MASK);
+                        pending -= 1;
+                        if (pending > 0) {
+                            continue;
+                        }
+                        c = _alphabet.toInt((char) ch);
+                    } else {
+                        start = false;
+                        pending = (b & LEAD3_MASK) == LEAD3 ? 2
+                            : (b & LEAD2_MASK) == LEAD2 ? 1 : 0;
+                        ch = b & (pending == 2 ? ~LEAD3_MASK : ~LEAD2_MASK);
+                        continue;
+                    }
+                    if (c >= 0) {
+                        if (advance(c)) {
+                            hits.hit(line, offset - _length + 1);
+                        }
+                        offset += 1;
+                    }
+                }
+            }
+        }
+    }
+
+    /** Pass every feasible offset in TEXT, one message of ciphertext in
+     *  which characters not in the alphabet are ignored, to HITS as
+     *  offsets in line 1. */
+    void scan(CharSequence text, Hits hits) {
+        reset();
+        long offset = 0;
+        for (int i = 0; i < text.length(); i++) {
+            int c = _alphabet.toInt(text.charAt(i));
+            if (c >= 0) {
+                if (advance(c)) {
+                    hits.hit(1, offset - _length + 1);
+                }
+                offset += 1;
+            }
+        }
+    }
+
+    /** Clear the scanning state, as at the start of a message. */
+    private void reset() {
+        for (int w = 0; w < _words; w++) {
+            _state[w] = 0;
+        }
+    }
+
+    /** Take in the ciphertext character with index C, returning true iff
+     *  the crib could end at it. */
+    private boolean advance(int c) {
+        int row = c * _words;
+        if (_words == 1) {
+            long state = ((_state[0] << 1) | 1) & _allowed[row];
+            _state[0] = state;
+            return (state >>> (_length - 1) & 1) != 0;
+        }
+        long carry = 1;
+        for (int w = 0; w < _words; w++) {
+            long state = _state[w];
+            _state[w] = ((state << 1) | carry) & _allowed[row + w];
+            carry = state >>> (Long.SIZE - 1);
+        }
+        int last = _length - 1;
+        return (_state[last / Long.SIZE] >>> (last % Long.SIZE) & 1) != 0;
+    }
+
+    /** Bytes mapped at a time. */
+    private static final long WINDOW = 1 << 28;
+    /** Characters of output buffered per file before writing. */
+    private static final int FLUSH_CHARS = 1 << 16;
+    /** Number of ASCII characters. */
+    private static final int ASCII = 0x80;
+    /** Mask of the bits of a byte. */
+    private static final int BYTE_MASK = 0xff;
+    /** UTF-8 continuation bytes are those B with B & CONTINUATION_MASK
+     *  equal to CONTINUATION; likewise for the leading bytes of 2- and
+     *  3-byte sequences. */
+    private static final int CONTINUATION_MASK = 0xc0, CONTINUATION = 0x80,
+        LEAD2_MASK = 0xe0, LEAD2 = 0xc0, LEAD3_MASK = 0xf0, LEAD3 = 0xe0;
+
+    /** The alphabet. */
+    private final Alphabet _alphabet;
+    /** True iff the alphabet is the byte alphabet. */
+    private final boolean _bytes;
+    /** Number of characters in the crib. */
+    private final int _length;
+    /** Longs in a bitset over the crib. */
+    private final int _words;
+    /** _allowed[c * _words] onward is the bitset of the positions in the
+     *  crib whose characters differ from the character with index C. */
+    private final long[] _allowed;
+    /** _ascii[b] is the index of the ASCII character B, or -1. */
+    private final int[] _ascii;
+    /** The scanning state: bit J is set iff the crib's first J+1
+     *  characters differ from the last J+1 characters taken in. */
+    private final long[] _state;
+}
@@ -13,6 +13,10 @@ class FixedRotor extends Rotor {
         super(name, perm);
     }
 
+    @Override
+    Rotor copy() {
+        return new FixedRotor(name(), basePermutation());
+    }
 
     @Override
     public String toString() {
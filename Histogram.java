@@ -0,0 +1,101 @@
+package enigma;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** A histogram of non-negative long values, such as latencies in
+ *  nanoseconds, with a relative precision of about 3%.  Values below
+ *  2 * SUB_BUCKETS are counted exactly; above that, each power of two
+ *  is divided into SUB_BUCKETS equal buckets.  Recording a value is one
+ *  atomic increment, allocates nothing, and may be done by many threads
+ *  at once.
+ *  @author Haoqing Xuan
+ */
+final class Histogram {
+
+    /** Record VALUE, treating negative values as 0. */
+    void record(long value) {
+        _counts.incrementAndGet(bucket(Math.max(value, 0)));
+    }
+
+    /** Return the number of values recorded. */
+    long count() {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += _counts.get(i);
+        }
+        return total;
+    }
+
+    /** Return the smallest recorded value, up to the precision of the
+     *  histogram, at or below which at least the fraction P of all
+     *  recorded values lie, or 0 if nothing has been recorded. */
+    long percentile(double p) {
+        long total = count();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(p * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += _counts.get(i);
+            if (seen >= rank) {
+                return highest(i);
+            }
+        }
+        return highest(BUCKETS - 1);
+    }
+
+    /** Return a summary of the 50th, 99th and 99.9th percentiles and
+     *  the maximum, in microseconds. */
+    String summary() {
+        return String.format("n=%d p50=%.1fus p99=%.1fus p99.9=%.1fus"
+                             + " max=%.1fus", count(),
+                             percentile(PCT_50) / NANOS_PER_MICRO,
+                             percentile(PCT_99) / NANOS_PER_MICRO,
+                             percentile(PCT_999) / NANOS_PER_MICRO,
+                             percentile(1.0) / NANOS_PER_MICRO);
+    }
+
+    /** Forget every recorded value. */
+    void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            _counts.set(i, 0);
+        }
+    }
+
+    /** Return the bucket holding VALUE >= 0. */
+    static int bucket(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exp = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exp - SUB_BITS));
+        return (exp - SUB_BITS + 1) * SUB_BUCKETS + sub - SUB_BUCKETS;
+    }
+
+    /** Return the largest value in BUCKET. */
+    static long highest(int bucket) {
+        if (bucket < 2 * SUB_BUCKETS) {
+            return bucket;
+        }
+        int exp = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = bucket % SUB_BUCKETS + SUB_BUCKETS;
+        int shift = exp - SUB_BITS;
+        return (sub << shift) + (1L << shift) - 1;
+    }
+
+    /** Log base 2 of SUB_BUCKETS. */
+    private static final int SUB_BITS = 5;
+    /** Number of buckets each power of two is divided into. */
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    /** Number of buckets in all, enough for any long. */
+    private static final int BUCKETS = bucket(Long.MAX_VALUE) + 1;
+
+    /** The 50th, 99th and 99.9th percentiles. */
+    private static final double PCT_50 = 0.5, PCT_99 = 0.99, PCT_999 = 0.999;
+    /** Nanoseconds per microsecond. */
+    private static final double NANOS_PER_MICRO = 1e3;
+
+    /** _counts[b] is the number of values recorded in bucket B. */
+    private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+}
@@ -0,0 +1,491 @@
+package enigma;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.stream.IntStream;
+
+import static enigma.EnigmaException.*;
+
+/** A generator of key sheets: long lists of distinct random settings
+ *  lines for one configuration, each giving a rotor order, rotor
+ *  settings, ring settings and plugboard pairs.  Rotor orders are drawn
+ *  from the valid orders of the configuration, each of which is checked
+ *  once with Machine.insertRotors.  Keys are generated in parallel in
+ *  chunks, each from its own random stream, and are deduplicated by a
+ *  KeySet, a Bloom filter in front of an exact table of keys packed
+ *  into bits.
+ *  @author Haoqing Xuan
+ */
+final class KeySheet {
+
+    /** Write a key sheet as specified by ARGS: options, then the name of
+     *  a configuration file, the number of keys, and optionally the name
+     *  of the output file (by default, the standard output).  The options
+     *  are
+     *      --seed=N   seed of the random streams (default 1)
+     *      --plugs=N  plugboard pairs per key (default 10)
+     *  Chunks are written as they are finished, so the order of the keys
+     *  may vary from run to run.  Exits normally if there are no errors;
+     *  otherwise with code 1. */
+    public static void main(String... args) {
+        try {
+            long seed = 1;
+            int plugs = DEFAULT_PLUGS;
+            int first;
+            for (first = 0; first < args.length
+                     && args[first].startsWith("--"); first += 1) {
+                String opt = args[first];
+                String value = opt.substring(opt.indexOf('=') + 1);
+                try {
+                    if (opt.startsWith("--seed=")) {
+                        seed = Long.parseLong(value);
+                    } else if (opt.startsWith("--plugs=")) {
+                        plugs = Integer.parseInt(value);
+                    } else {
+                        throw error("unknown option %s", opt);
+                    }
+                } catch (NumberFormatException excp) {
+                    throw error("bad number in %s", opt);
+                }
+            }
+            int rest = args.length - first;
+            if (rest != 2 && rest != 3) {
+                throw error("usage: KeySheet [--seed=N] [--plugs=N]"
+                            + " CONFIG COUNT [OUTPUT]");
+            }
+            long count;
+            try {
+                count = Long.parseLong(args[first + 1]);
+            } catch (NumberFormatException excp) {
+                throw error("bad key count %s", args[first + 1]);
+            }
+            KeySheet sheet = new KeySheet(Registry.machine(args[first]),
+                                          plugs);
+            long start = System.nanoTime();
+            if (rest == 3) {
+                try (Writer out = writer(Files.newOutputStream(
+                                             Paths.get(args[first + 2])))) {
+                    sheet.write(out, count, seed);
+                }
+            } else {
+                Writer out = writer(System.out);
+                sheet.write(out, count, seed);
+                out.flush();
+                System.out.flush();
+            }
+            System.err.printf("%d keys in %.3f s%n", count,
+                              (System.nanoTime() - start) / 1e9);
+            return;
+        } catch (IOException excp) {
+            System.err.printf("Error: %s%n", excp.getMessage());
+        } catch (UncheckedIOException excp) {
+            System.err.printf("Error: %s%n", excp.getCause().getMessage());
+        } catch (EnigmaException excp) {
+            System.err.printf("Error: %s%n", excp.getMessage());
+        }
+        System.exit(1);
+    }
+
+    /** Return a buffered writer of UTF-8 text to OUT. */
+    private static Writer writer(OutputStream out) {
+        return new BufferedWriter(new OutputStreamWriter(
+                                      out, StandardCharsets.UTF_8),
+                                  BUFFER_CHARS);
+    }
+
+    /** A generator of keys for MACHINE, each with PLUGS plugboard
+     *  pairs. */
+    KeySheet(Machine machine, int plugs) {
+        _alphabet = machine.alphabet();
+        _size = _alphabet.size();
+        if (plugs < 0 || 2 * plugs > _size) {
+            throw error("cannot make %d plugboard pairs", plugs);
+        }
+        _plugs = plugs;
+        _slots = machine.numRotors() - 1;
+        Machine check = machine.copy();
+        _orders = Catalog.orders(check, Collections.emptySet());
+        for (String[] order : _orders) {
+            check.insertRotors(order);
+        }
+        _orderBits = bits(_orders.size());
+        _charBits = bits(_size);
+        int keyBits = _orderBits + (2 * _slots + 2 * plugs) * _charBits;
+        _words = (keyBits + Long.SIZE - 1) / Long.SIZE;
+    }
+
+    /** Return the number of distinct keys I can generate. */
+    double keys() {
+        double keys = _orders.size() * Math.pow(_size, 2 * _slots);
+        for (int p = 0; p < _plugs; p++) {
+            keys *= (double) (_size - 2 * p) * (_size - 2 * p - 1)
+                / (2 * (p + 1));
+        }
+        return keys;
+    }
+
+    /** Write COUNT distinct keys, one settings line each, to OUT, using
+     *  random streams split from SEED. */
+    void write(Writer out, long count, long seed) {
+        if (count < 0 || count > keys()) {
+            throw error("only %.0f distinct keys", keys());
+        }
+        KeySet seen = new KeySet(count, _words);
+        long chunks = (count + CHUNK - 1) / CHUNK;
+        if (chunks > Integer.MAX_VALUE) {
+            throw error("too many keys");
+        }
+        IntStream.range(0, (int) chunks).parallel().forEach(k -> {
+            int n = (int) Math.min(CHUNK, count - (long) k * CHUNK);
+            String lines = chunk(seen, n, seed + k * SEED_STEP);
+            synchronized (out) {
+                try {
+                    out.write(lines);
+                } catch (IOException excp) {
+                    throw new UncheckedIOException(excp);
+                }
+            }
+        });
+    }
+
+    /** Return N new keys, not yet in SEEN, as settings lines, drawn
+     *  from the random stream SEED and added to SEEN. */
+    private String chunk(KeySet seen, int n, long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        StringBuilder lines = new StringBuilder(n * LINE_GUESS);
+        int[] letters = new int[_size];
+        for (int i = 0; i < _size; i++) {
+            letters[i] = i;
+        }
+        int[] posns = new int[_slots];
+        int[] rings = new int[_slots];
+        int[] pairs = new int[2 * _plugs];
+        long[] key = new long[_words];
+        for (int made = 0; made < n; ) {
+            int order = random.nextInt(_orders.size());
+            for (int i = 0; i < _slots; i++) {
+                posns[i] = random.nextInt(_size);
+                rings[i] = random.nextInt(_size);
+            }
+            for (int i = 0; i < pairs.length; i++) {
+                int j = i + random.nextInt(_size - i);
+                int t = letters[i];
+                letters[i] = letters[j];
+                letters[j] = t;
+                pairs[i] = letters[i];
+            }
+            canonical(pairs);
+            pack(order, posns, rings, pairs, key);
+            if (seen.add(key)) {
+                append(lines, order, posns, rings, pairs);
+                made += 1;
+            }
+        }
+        return lines.toString();
+    }
+
+    /** Put the plugboard pairs PAIRS, as consecutive elements, into a
+     *  canonical form: the smaller letter of each pair first, and the
+     *  pairs in increasing order of their first letters. */
+    private static void canonical(int[] pairs) {
+        for (int i = 0; i < pairs.length; i += 2) {
+            if (pairs[i] > pairs[i + 1]) {
+                int t = pairs[i];
+                pairs[i] = pairs[i + 1];
+                pairs[i + 1] = t;
+            }
+        }
+        for (int i = 2; i < pairs.length; i += 2) {
+            int a = pairs[i], b = pairs[i + 1];
+            int j;
+            for (j = i; j > 0 && pairs[j - 2] > a; j -= 2) {
+                pairs[j] = pairs[j - 2];
+                pairs[j + 1] = pairs[j - 1];
+            }
+            pairs[j] = a;
+            pairs[j + 1] = b;
+        }
+    }
+
+    /** Pack the key with rotor order ORDER, rotor settings POSNS, ring
+     *  settings RINGS and canonical plugboard pairs PAIRS into KEY. */
+    private void pack(int order, int[] posns, int[] rings, int[] pairs,
+                      long[] key) {
+        for (int i = 0; i < key.length; i++) {
+            key[i] = 0;
+        }
+        int at = put(key, 0, order, _orderBits);
+        for (int i = 0; i < _slots; i++) {
+            at = put(key, at, posns[i], _charBits);
+            at = put(key, at, rings[i], _charBits);
+        }
+        for (int pair : pairs) {
+            at = put(key, at, pair, _charBits);
+        }
+    }
+
+    /** Store the BITS-bit VALUE in KEY at bit AT, returning the bit
+     *  after it. */
+    private static int put(long[] key, int at, long value, int bits) {
+        int word = at / Long.SIZE, bit = at % Long.SIZE;
+        key[word] |= value << bit;
+        if (bit + bits > Long.SIZE) {
+            key[word + 1] |= value >>> (Long.SIZE - bit);
+        }
+        return at + bits;
+    }
+
+    /** Append the settings line for the key with rotor order ORDER,
+     *  rotor settings POSNS, ring settings RINGS and plugboard pairs
+     *  PAIRS to LINES. */
+    private void append(StringBuilder lines, int order, int[] posns,
+                        int[] rings, int[] pairs) {
+        lines.append('*');
+        for (String name : _orders.get(order)) {
+            lines.append(' ').append(name);
+        }
+        lines.append(' ');
+        for (int posn : posns) {
+            _alphabet.encode(lines, posn);
+        }
+        lines.append(' ');
+        for (int ring : rings) {
+            _alphabet.encode(lines, ring);
+        }
+        for (int i = 0; i < pairs.length; i += 2) {
+            lines.append(" (");
+            _alphabet.encode(lines, pairs[i]);
+            _alphabet.encode(lines, pairs[i + 1]);
+            lines.append(')');
+        }
+        lines.append('\n');
+    }
+
+    /** Return the number of bits needed for values 0 .. N-1. */
+    private static int bits(int n) {
+        return Math.max(1, Integer.SIZE - Integer.numberOfLeadingZeros(n - 1));
+    }
+
+    /** A set of keys packed into a fixed number of longs, safe for use
+     *  by many threads.  A Bloom filter answers most questions about new
+     *  keys; only when it reports that a key may have been seen is the
+     *  key compared with those in the exact table, which is divided into
+     *  stripes with their own locks. */
+    static final class KeySet {
+
+        /** A set expected to hold about EXPECTED keys of WORDS longs. */
+        KeySet(long expected, int words) {
+            _words = words;
+            long bits = Long.highestOneBit(
+                Math.max(Long.SIZE, expected * BLOOM_BITS_PER_KEY) * 2 - 1);
+            if (bits / Long.SIZE > Integer.MAX_VALUE) {
+                throw error("too many keys");
+            }
+            _bloom = new AtomicLongArray((int) (bits / Long.SIZE));
+            _bloomMask = bits - 1;
+            _stripes = new Stripe[STRIPES];
+            for (int i = 0; i < STRIPES; i++) {
+                _stripes[i] = new Stripe(words);
+            }
+        }
+
+        /** Add KEY, returning true iff it was not already present.  KEY
+         *  is copied. */
+        boolean add(long[] key) {
+            long hash = hash(key);
+            Stripe stripe = _stripes[(int) (hash >>> (Long.SIZE - 6))];
+            synchronized (stripe) {
+                if (!mark(hash) && stripe.contains(hash, key)) {
+                    return false;
+                }
+                stripe.insert(hash, key);
+                return true;
+            }
+        }
+
+        /** Return the number of keys present. */
+        long size() {
+            long size = 0;
+            for (Stripe stripe : _stripes) {
+                synchronized (stripe) {
+                    size += stripe._count;
+                }
+            }
+            return size;
+        }
+
+        /** Set the Bloom filter bits for HASH, returning true iff any of
+         *  them was clear, in which case no key with HASH has been
+         *  added. */
+        private boolean mark(long hash) {
+            long h2 = (hash >>> Integer.SIZE) | 1;
+            boolean fresh = false;
+            for (int i = 0; i < BLOOM_HASHES; i++) {
+                long bit = (hash + i * h2) & _bloomMask;
+                int word = (int) (bit >>> 6);
+                long mask = 1L << bit;
+                long old = _bloom.get(word);
+                while ((old & mask) == 0) {
+                    if (_bloom.compareAndSet(word, old, old | mask)) {
+                        fresh = true;
+                        break;
+                    }
+                    old = _bloom.get(word);
+                }
+            }
+            return fresh;
+        }
+
+        /** Return a well-mixed non-zero hash of KEY. */
+        private static long hash(long[] key) {
+            long h = GOLDEN;
+            for (long word : key) {
+                h = Long.rotateLeft(h ^ word, 31) * GOLDEN;
+            }
+            h ^= h >>> 33;
+            h *= MIX1;
+            h ^= h >>> 33;
+            h *= MIX2;
+            h ^= h >>> 33;
+            return h == 0 ? 1 : h;
+        }
+
+        /** One stripe of the exact table: an open-addressed table whose
+         *  slot I holds a key's hash in _hashes[i], 0 if empty, and the
+         *  key in _keys[i * words] onward. */
+        private static final class Stripe {
+            /** An empty stripe for keys of WORDS longs. */
+            Stripe(int words) {
+                _words = words;
+                _hashes = new long[INITIAL_SLOTS];
+                _keys = new long[INITIAL_SLOTS * words];
+            }
+
+            /** Return true iff KEY, with hash HASH, is present. */
+            boolean contains(long hash, long[] key) {
+                int mask = _hashes.length - 1;
+                for (int i = (int) hash & mask; _hashes[i] != 0;
+                     i = (i + 1) & mask) {
+                    if (_hashes[i] == hash && same(i, key)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            /** Insert KEY, with hash HASH, which is not present. */
+            void insert(long hash, long[] key) {
+                if (2 * (_count + 1) > _hashes.length) {
+                    grow();
+                }
+                int mask = _hashes.length - 1;
+                int i = (int) hash & mask;
+                while (_hashes[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                _hashes[i] = hash;
+                System.arraycopy(key, 0, _keys, i * _words, _words);
+                _count += 1;
+            }
+
+            /** Return true iff slot I holds KEY. */
+            private boolean same(int i, long[] key) {
+                for (int w = 0; w < _words; w++) {
+                    if (_keys[i * _words + w] != key[w]) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            /** Double my number of slots. */
+            private void grow() {
+                long[] hashes = _hashes, keys = _keys;
+                if (hashes.length * 2L * _words > Integer.MAX_VALUE) {
+                    throw error("too many keys");
+                }
+                _hashes = new long[hashes.length * 2];
+                _keys = new long[_hashes.length * _words];
+                _count = 0;
+                long[] key = new long[_words];
+                for (int i = 0; i < hashes.length; i++) {
+                    if (hashes[i] != 0) {
+                        System.arraycopy(keys, i * _words, key, 0, _words);
+                        insert(hashes[i], key);
+                    }
+                }
+            }
+
+            /** Longs per key. */
+            private final int _words;
+            /** Hashes of the keys, by slot. */
+            private long[] _hashes;
+            /** The keys, by slot. */
+            private long[] _keys;
+            /** Number of keys present. */
+            private int _count;
+        }
+
+        /** Number of stripes, chosen by the top 6 bits of a hash. */
+        private static final int STRIPES = 64;
+        /** Bloom filter bits per expected key, before rounding up. */
+        private static final int BLOOM_BITS_PER_KEY = 10;
+        /** Bits set in the Bloom filter per key. */
+        private static final int BLOOM_HASHES = 7;
+        /** Slots in a new stripe. */
+        private static final int INITIAL_SLOTS = 16;
+        /** Constants for mixing hashes. */
+        private static final long GOLDEN = 0x9e3779b97f4a7c15L,
+            MIX1 = 0xff51afd7ed558ccdL, MIX2 = 0xc4ceb9fe1a85ec53L;
+
+        /** Longs per key. */
+        private final int _words;
+        /** The Bloom filter. */
+        private final AtomicLongArray _bloom;
+        /** Number of bits in the Bloom filter, less 1. */
+        private final long _bloomMask;
+        /** The stripes of the exact table. */
+        private final Stripe[] _stripes;
+    }
+
+    /** Default plugboard pairs per key. */
+    private static final int DEFAULT_PLUGS = 10;
+    /** Keys per chunk. */
+    private static final int CHUNK = 1 << 14;
+    /** Distance between the seeds of successive chunks. */
+    private static final long SEED_STEP = 0x9e3779b97f4a7c15L;
+    /** Rough length of a settings line, for sizing buffers. */
+    private static final int LINE_GUESS = 64;
+    /** Size of the output buffer. */
+    private static final int BUFFER_CHARS = 1 << 16;
+
+    /** The alphabet. */
+    private final Alphabet _alphabet;
+    /** Size of the alphabet. */
+    private final int _size;
+    /** Plugboard pairs per key. */
+    private final int _plugs;
+    /** Rotor slots, not counting the reflector. */
+    private final int _slots;
+    /** The valid rotor orders. */
+    private final List<String[]> _orders;
+    /** Bits in a packed rotor order. */
+    private final int _orderBits;
+    /** Bits in a packed letter. */
+    private final int _charBits;
+    /** Longs in a packed key. */
+    private final int _words;
+}
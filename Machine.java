@@ -1,7 +1,14 @@
 package enigma;
 
+import java.nio.ByteBuffer;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 
 
 import static enigma.EnigmaException.*;
@@ -28,6 +35,7 @@ class Machine {
     Machine(Alphabet alpha, int numRotors, int pawls,
             ArrayList<Rotor> allRotors) {
         _alphabet = alpha;
+        _isBytes = alpha.isBytes();
         if (numRotors <= 1) {
             throw error("Wrong number of rotors");
         }
@@ -44,6 +52,33 @@ class Machine {
 
     }
 
+    /** Return my alphabet. */
+    Alphabet alphabet() {
+        return _alphabet;
+    }
+
+    /** Return a new machine with my alphabet, slots and pawls whose
+     *  available rotors are fresh copies of mine.  The copy shares no
+     *  mutable state with me, so the two may be used by different
+     *  threads; its rotors and plugboard must be set up anew. */
+    Machine copy() {
+        ArrayList<Rotor> rotors = new ArrayList<>();
+        for (Rotor r : _allRotors) {
+            rotors.add(r.copy());
+        }
+        Machine result = new Machine(_alphabet, numRotors(), _pawls, rotors);
+        result.setStepping(_stepping);
+        return result;
+    }
+
+    /** Return an estimate of the number of bytes taken by my available
+     *  rotors, for caches that hold machines. */
+    long footprint() {
+        return (long) _allRotors.size()
+            * (ROTOR_BYTES + PERMUTATION_ARRAYS * Integer.BYTES
+               * _alphabet.size());
+    }
+
     /** Return the number of rotor slots I have. */
     int numRotors() {
         return _rotors.length;
@@ -57,18 +92,33 @@ class Machine {
     /** @return rotorExist to check whether the rotor exist.
      * @param name */
     boolean rotorExist(String name) {
+        return availableRotor(name) != null;
+    }
+
+    /** Return my available rotors. */
+    List<Rotor> availableRotors() {
+        return Collections.unmodifiableList(_allRotors);
+    }
+
+    /** Return my available rotor named NAME, or null if there is none. */
+    Rotor availableRotor(String name) {
         for (Rotor r: _allRotors) {
             if (r.name().equals(name)) {
-                return true;
+                return r;
             }
         }
-        return false;
+        return null;
     }
 
     /** Set my rotor slots to the rotors named ROTORS from my set of
      *  available rotors (ROTORS[0] names the reflector).
-     *  Initially, all rotors are set at their 0 setting. */
+     *  Initially, all rotors are set at their 0 setting and 0 ring
+     *  setting. */
     void insertRotors(String[] rotors) {
+        _engine = null;
+        _key = null;
+        _notches = null;
+        _state = -1;
         if (rotors.length != _rotors.length) {
             throw error("Wrong number of rotors");
         }
@@ -86,6 +136,7 @@ class Machine {
                         throw error("Rotor at wrong position");
                     }
                     _rotors[i] = r;
+                    r.setRing(0);
                 }
             }
         }
@@ -111,31 +162,223 @@ class Machine {
                 throw error("Character out of range");
             }
         }
+        _state = -1;
+    }
+
+    /** Set my rotors' ring settings according to RINGS, which must be
+     *  a string of numRotors()-1 characters in my alphabet, the first
+     *  referring to the leftmost rotor (not counting the reflector).
+     *  The rotors' wirings are shifted once, here, so ring settings add
+     *  nothing to the cost of converting a character. */
+    void setRings(String rings) {
+        if (rings.length() != _rotors.length - 1) {
+            throw error("Ring setting length doesn't match");
+        }
+        for (int i = 1; i < _rotors.length; i++) {
+            int ring = _alphabet.toInt(rings.charAt(i - 1));
+            if (ring < 0) {
+                throw error("Character out of range");
+            }
+            _rotors[i].setRing(ring);
+        }
+        _engine = null;
+        _key = null;
     }
 
     /** Set the plugboard to PLUGBOARD. */
     void setPlugboard(Permutation plugboard) {
         _plugBoard = plugboard;
+        _engine = null;
+        _key = null;
     }
 
-    /** Returns the result of converting the input character C (as an
-     *  index in the range 0..alphabet size - 1), after first advancing
-     *  the machine. */
-    int convert(int c) {
+    /** Return my plugboard, or null if I have none. */
+    Permutation plugboard() {
+        return _plugBoard;
+    }
+
+    /** Return the rotor in slot K, where slot 0 holds the reflector. */
+    Rotor rotor(int k) {
+        return _rotors[k];
+    }
 
-        HashMap<Integer, Rotor> advance = new HashMap<>();
-        advance.put(_rotors.length - 1, _rotors[_rotors.length - 1]);
+    /** Return the current settings of my rotors, indexed by slot. */
+    int[] positions() {
+        int[] result = new int[_rotors.length];
+        for (int i = 0; i < _rotors.length; i++) {
+            result[i] = _rotors[i].setting();
+        }
+        return result;
+    }
 
-        for (int i = _rotors.length - _pawls + 1; i < _rotors.length; i++) {
-            if (_rotors[i].atNotch()) {
-                advance.put(i, _rotors[i]);
-                advance.put(i - 1, _rotors[i - 1]);
+    /** Set my rotors to POSITIONS, as returned by positions(). */
+    void setPositions(int[] positions) {
+        for (int i = 1; i < _rotors.length; i++) {
+            _rotors[i].set(positions[i]);
+        }
+        _state = -1;
+    }
+
+    /** Step my rotors according to STEPPING from now on. */
+    void setStepping(Stepping stepping) {
+        _stepping = stepping;
+        _engine = null;
+        _key = null;
+        _notches = null;
+    }
+
+    /** Return my stepping model. */
+    Stepping stepping() {
+        return _stepping;
+    }
+
+    /** Return a CompiledMachine with my current rotors, settings and
+     *  plugboard.  Converting with it leaves my own state unchanged. */
+    CompiledMachine compile() {
+        return new CompiledMachine(this);
+    }
+
+    /** Use a CompiledMachine for convert(String) and the byte conversions
+     *  iff ON. */
+    void setCompiled(boolean on) {
+        _compiled = on;
+    }
+
+    /** Use a CompiledMachine with a StateTable attached for
+     *  convert(String) and the byte conversions iff ON.  Where the table
+     *  would be too large, the CompiledMachine is used alone. */
+    void setTables(boolean on) {
+        _tables = on;
+        _engine = null;
+    }
+
+    /** Choose, for each message, between converting it myself, with a
+     *  CompiledMachine, and with a CompiledMachine with a StateTable
+     *  attached iff ON, unless setCompiled or setTables has fixed the
+     *  choice.  See tier(). */
+    void setTiered(boolean on) {
+        _tiered = on;
+    }
+
+    /** Return the tier on which to convert a message of LENGTH
+     *  characters, counting it as a use of my current key (my rotors,
+     *  ring settings, plugboard and stepping model).  When tiered, a
+     *  CompiledMachine is used for messages of at least COMPILE_LENGTH
+     *  characters or once the key has been used COMPILE_USES times, and
+     *  a StateTable for messages of at least TABLE_LENGTH characters or
+     *  once the key has been used TABLE_USES times.  Tiers only rise
+     *  until the key changes, since a better engine once built costs
+     *  nothing to keep using. */
+    private int tier(long length) {
+        if (_tables) {
+            return TABLES;
+        } else if (_compiled) {
+            return COMPILED;
+        } else if (!_tiered) {
+            return INTERPRETED;
+        }
+        String key = key();
+        if (key != _usesKey) {
+            _usesKey = key;
+            if (_uses.size() >= KEY_MEMORY) {
+                _uses.clear();
             }
+            _keyUses = _uses.getOrDefault(key, 0);
+            _tier = INTERPRETED;
         }
-        for (Rotor rot : advance.values()) {
-            rot.advance();
+        _keyUses += 1;
+        _uses.put(key, _keyUses);
+        if (length >= TABLE_LENGTH || _keyUses >= TABLE_USES) {
+            _tier = TABLES;
+        } else if (length >= COMPILE_LENGTH || _keyUses >= COMPILE_USES) {
+            _tier = Math.max(_tier, COMPILED);
         }
+        return _tier;
+    }
 
+    /** Return a string identifying my current key: a SHA-256 digest of
+     *  my alphabet, my stepping model, the kinds, wirings, notches and
+     *  ring settings of my rotors, and my plugboard.  Machines from
+     *  different configurations have different keys even where their
+     *  rotors share names.  The same string is returned until the key
+     *  changes. */
+    String key() {
+        if (_key != null) {
+            return _key;
+        }
+        int n = _alphabet.size();
+        StringBuilder text = new StringBuilder(_stepping.name());
+        text.append(' ');
+        for (int c = 0; c < n; c++) {
+            text.append(_alphabet.toChar(c));
+        }
+        for (Rotor r : _rotors) {
+            text.append(' ').append(r.reflecting() ? 'R'
+                                    : r.rotates() ? 'M' : 'F')
+                .append(r.ring()).append(':');
+            for (int c = 0; c < n; c++) {
+                text.append(_alphabet.toChar(r.basePermutation()
+                                             .permute(c)));
+            }
+            text.append(':');
+            for (int p = 0; p < n; p++) {
+                text.append(r.notchAt(p) ? '1' : '0');
+            }
+        }
+        if (_plugBoard != null) {
+            text.append(' ');
+            for (int c = 0; c < n; c++) {
+                text.append(_alphabet.toChar(_plugBoard.permute(c)));
+            }
+        }
+        ByteBuffer chars = ByteBuffer.allocate(Character.BYTES
+                                               * text.length());
+        chars.asCharBuffer().put(text.toString());
+        try {
+            StringBuilder key = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-256")
+                     .digest(chars.array())) {
+                key.append(String.format("%02x", b));
+            }
+            _key = key.toString();
+        } catch (NoSuchAlgorithmException excp) {
+            throw error("SHA-256 is not available");
+        }
+        return _key;
+    }
+
+    /** Return a CompiledMachine for converting a message on tier TIER
+     *  (COMPILED or TABLES), at my current settings, with a StateTable
+     *  attached on tier TABLES if one is available.  The same one is
+     *  reused until my rotors or plugboard are replaced, gaining a
+     *  table if it is first used on a lower tier. */
+    private CompiledMachine engine(int tier) {
+        boolean reuse = _engine != null
+            && _engine.setPositions(positions());
+        Metrics.cache(Metrics.Cache.ENGINE, reuse);
+        if (!reuse) {
+            _engine = compile();
+            _attached = false;
+        }
+        if (tier == TABLES && !_attached) {
+            _engine.attach(StateTable.get(_engine));
+            _attached = true;
+        }
+        return _engine;
+    }
+
+    /** Returns the result of converting the input character C (as an
+     *  index in the range 0..alphabet size - 1), after first advancing
+     *  the machine. */
+    int convert(int c) {
+        step();
+        return encipher(c);
+    }
+
+    /** Returns the result of converting the input character C (as an
+     *  index in the range 0..alphabet size - 1) at my current settings,
+     *  without advancing the machine. */
+    int encipher(int c) {
         int cConverted = c;
         if (_plugBoard != null) {
             cConverted = _plugBoard.permute(c);
@@ -150,29 +393,320 @@ class Machine {
             cConverted = _plugBoard.invert(cConverted);
         }
         return cConverted;
+    }
 
+    /** Advance my moving rotors once, according to my stepping model.
+     *  Where the model's next-state table for my rotors is available,
+     *  this is one lookup plus storing the new settings. */
+    private void step() {
+        if (_notches == null) {
+            prepareStepping();
+        }
+        int n = _alphabet.size();
+        int first = _rotors.length - _pawls;
+        if (_next != null) {
+            if (_state < 0) {
+                _state = 0;
+                for (int i = first; i < _rotors.length; i++) {
+                    _state = _state * n + _rotors[i].setting();
+                }
+            }
+            _state = _next[_state];
+            int state = _state;
+            for (int i = _rotors.length - 1; i >= first; i--) {
+                _rotors[i].set(state % n);
+                state /= n;
+            }
+        } else {
+            for (int i = first; i < _rotors.length; i++) {
+                _stepPosns[i - first] = _rotors[i].setting();
+            }
+            _stepping.step(_stepPosns, _notches, n);
+            for (int i = first; i < _rotors.length; i++) {
+                _rotors[i].set(_stepPosns[i - first]);
+            }
+        }
+    }
+
+    /** Record the notches of my moving rotors and fetch my stepping
+     *  model's next-state table for them. */
+    private void prepareStepping() {
+        int n = _alphabet.size();
+        int first = _rotors.length - _pawls;
+        _notches = new boolean[_pawls][n];
+        for (int k = 0; k < _pawls; k++) {
+            for (int p = 0; p < n; p++) {
+                _notches[k][p] = _rotors[first + k].notchAt(p);
+            }
+        }
+        _stepPosns = new int[_pawls];
+        _next = _stepping.next(_notches, n);
+        _state = -1;
     }
 
 
 
 
 
+    /** Advance my rotors N times, as converting N characters would,
+     *  without converting anything. */
+    void advance(long n) {
+        CompiledMachine engine = engine(_tables ? TABLES : COMPILED);
+        engine.advance(n);
+        setPositions(engine.positions());
+    }
+
+    /** Return the result of re-encrypting a document after an edit,
+     *  where CIPHERTEXT is the document encrypted from rotor settings
+     *  START (as returned by positions()), and the edit replaces the
+     *  DELETED characters of plaintext at OFFSET by INSERTED.  Every
+     *  character involved must be in my alphabet.  The ciphertext before
+     *  OFFSET is unaffected and is neither decrypted nor re-encrypted:
+     *  the machine skips straight to the state at OFFSET.  If as many
+     *  characters are inserted as deleted, the ciphertext after the edit
+     *  is unaffected too, and only INSERTED is encrypted.  Afterwards my
+     *  rotors are as they would be after encrypting the new document. */
+    String reencrypt(int[] start, String ciphertext, int offset,
+                     int deleted, String inserted) {
+        if (offset < 0 || deleted < 0
+            || offset + deleted > ciphertext.length()) {
+            throw error("edit is outside the document");
+        }
+        setPositions(start);
+        advance(offset);
+        if (deleted == inserted.length()) {
+            String span = convertAll(inserted);
+            setPositions(start);
+            advance(ciphertext.length());
+            return ciphertext.substring(0, offset) + span
+                + ciphertext.substring(offset + deleted);
+        }
+        int[] atOffset = positions();
+        advance(deleted);
+        String tail = convertAll(ciphertext.substring(offset + deleted));
+        setPositions(atOffset);
+        return ciphertext.substring(0, offset)
+            + convertAll(inserted + tail);
+    }
+
+    /** Return the conversion of TEXT, every character of which must be
+     *  in my alphabet, using my CompiledMachine. */
+    private String convertAll(String text) {
+        CompiledMachine engine = engine(_tables ? TABLES : COMPILED);
+        char[] chars = text.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            int index = _alphabet.toInt(chars[i]);
+            if (index < 0) {
+                throw error("'%c' is not in the alphabet", chars[i]);
+            }
+            chars[i] = _alphabet.toChar(engine.convert(index));
+        }
+        setPositions(engine.positions());
+        return new String(chars);
+    }
+
     /** Returns the encoding/decoding of MSG, updating the state of
-     *  the rotors accordingly. */
+     *  the rotors accordingly.  Unless I am in passthrough mode, blanks
+     *  are removed first.  If I have a ResultCache, the result is taken
+     *  from it where possible. */
     String convert(String msg) {
-        String decodes = "";
+        if (_results != null) {
+            return _results.convert(this, msg);
+        }
+        return convertMessage(msg);
+    }
+
+    /** Return the conversion of MSG, as for convert(String), without
+     *  consulting my ResultCache. */
+    String convertMessage(String msg) {
+        int tier = tier(msg.length());
+        if (tier != INTERPRETED) {
+            CompiledMachine engine = engine(tier);
+            String result = engine.convert(msg, _passthrough);
+            setPositions(engine.positions());
+            return result;
+        }
+        StringBuilder decodes = new StringBuilder(msg.length());
+        if (_passthrough) {
+            for (int i = 0; i < msg.length(); i++) {
+                char ch = msg.charAt(i);
+                int index = _alphabet.toInt(ch);
+                if (index < 0) {
+                    decodes.append(ch);
+                } else {
+                    decodes.append(_alphabet.toChar(convert(index)));
+                }
+            }
+            return decodes.toString();
+        }
         msg = msg.trim();
         msg = msg.replace(" ", "");
         for (int i = 0; i < msg.length(); i++) {
-            if (msg.charAt(i) == ' ') {
-                i++;
+            int index = _alphabet.toInt(msg.charAt(i));
+            if (index < 0) {
+                throw error("'%c' is not in the alphabet", msg.charAt(i));
+            }
+            decodes.append(_alphabet.toChar(convert(index)));
+        }
+        return decodes.toString();
+    }
+
+    /** Take the conversions of messages from RESULTS where possible,
+     *  adding them to it otherwise, or stop if RESULTS is null. */
+    void setResultCache(ResultCache results) {
+        _results = results;
+    }
+
+    /** Set passthrough mode to ON.  In passthrough mode, convert(String)
+     *  copies characters that are not in my alphabet to its result
+     *  unchanged, without advancing the rotors, so that case,
+     *  punctuation and whitespace survive. */
+    void setPassthrough(boolean on) {
+        _passthrough = on;
+    }
+
+    /** Return true iff I am in passthrough mode. */
+    boolean passthrough() {
+        return _passthrough;
+    }
+    /** Convert the LEN bytes of DATA starting at OFF in place, as for
+     *  convert(int), treating each byte value as an index.  My alphabet
+     *  must be Alphabet.bytes(). */
+    void convert(byte[] data, int off, int len) {
+        checkBytes();
+        int tier = tier(len);
+        if (tier != INTERPRETED) {
+            CompiledMachine engine = engine(tier);
+            engine.convert(data, off, len);
+            setPositions(engine.positions());
+            return;
+        }
+        for (int i = off; i < off + len; i++) {
+            data[i] = (byte) convert(data[i] & BYTE_MASK);
+        }
+    }
+
+    /** Convert the remaining bytes of BUF in place, as for
+     *  convert(byte[], int, int), leaving its position at its limit. */
+    void convert(ByteBuffer buf) {
+        checkBytes();
+        if (buf.hasArray()) {
+            convert(buf.array(), buf.arrayOffset() + buf.position(),
+                    buf.remaining());
+        } else {
+            int tier = tier(buf.remaining());
+            if (tier != INTERPRETED) {
+                CompiledMachine engine = engine(tier);
+                engine.convert(buf);
+                setPositions(engine.positions());
+            } else {
+                for (int i = buf.position(); i < buf.limit(); i++) {
+                    buf.put(i, (byte) convert(buf.get(i) & BYTE_MASK));
+                }
             }
-            decodes += _alphabet.toChar(convert(
-                    _alphabet.toInt(msg.charAt(i))));
         }
-        return decodes;
+        buf.position(buf.limit());
+    }
+
+    /** Check that my alphabet is the byte alphabet. */
+    private void checkBytes() {
+        if (!_isBytes) {
+            throw error("machine alphabet is not %s", Alphabet.BYTES_NAME);
+        }
     }
+
+    /** Mask selecting the unsigned value of a byte. */
+    private static final int BYTE_MASK = 0xff;
+
+    /** Estimated bytes of a rotor and its permutations, apart from their
+     *  tables. */
+    private static final int ROTOR_BYTES = 256;
+
+    /** Number of int tables of alphabet size held by a rotor: the
+     *  forward and backward tables of its wiring and of its wiring at
+     *  its ring setting. */
+    private static final int PERMUTATION_ARRAYS = 4;
+
+    /** Tiers of conversion: by the machine itself, by a
+     *  CompiledMachine, and by a CompiledMachine with a StateTable. */
+    private static final int INTERPRETED = 0, COMPILED = 1, TABLES = 2;
+
+    /** Shortest messages converted, when tiered, by a CompiledMachine
+     *  and by a StateTable. */
+    private static final long COMPILE_LENGTH =
+        Long.getLong("enigma.tier.compile", 256),
+        TABLE_LENGTH = Long.getLong("enigma.tier.tables", 1 << 16);
+
+    /** Uses of a key after which, when tiered, it is converted by a
+     *  CompiledMachine and by a StateTable. */
+    private static final int COMPILE_USES = 4, TABLE_USES = 64;
+
+    /** Most keys whose uses are remembered; when there are more, all
+     *  are forgotten. */
+    private static final int KEY_MEMORY = 1024;
+
+    /** True iff messages are converted by a CompiledMachine. */
+    private boolean _compiled;
+
+    /** True iff the engine converting each message is chosen by its
+     *  length and the uses of its key. */
+    private boolean _tiered;
+
+    /** My current key, as returned by key(), or null if it has changed
+     *  since it was last computed. */
+    private String _key;
+
+    /** The key whose uses are counted in _keyUses. */
+    private String _usesKey;
+
+    /** Number of messages converted with _usesKey, as remembered in
+     *  _uses. */
+    private int _keyUses;
+
+    /** _uses.get(k) is the number of messages converted with key K. */
+    private final HashMap<String, Integer> _uses = new HashMap<>();
+
+    /** Highest tier used since _usesKey was set. */
+    private int _tier;
+
+    /** True iff a StateTable has been sought for _engine. */
+    private boolean _attached;
+
+    /** True iff messages are converted using a StateTable. */
+    private boolean _tables;
+
+    /** The engine last returned by engine(), or null if my rotors or
+     *  plugboard have changed since. */
+    private CompiledMachine _engine;
+
+    /** Cache of converted messages, or null if there is none. */
+    private ResultCache _results;
+
+    /** True iff convert(String) passes unknown characters through. */
+    private boolean _passthrough;
+
+    /** How my rotors step. */
+    private Stepping _stepping = Stepping.DOUBLE;
+
+    /** _notches[k][p] is true iff moving rotor K (from the left) has a
+     *  notch at setting P, or null if my rotors have changed since
+     *  stepping was last prepared. */
+    private boolean[][] _notches;
+
+    /** _stepping's next-state table for my moving rotors, or null if
+     *  there are too many states. */
+    private int[] _next;
+
+    /** The state of my moving rotors, as indexed in _next, or -1 if it
+     *  must be read from the rotors. */
+    private int _state = -1;
+
+    /** Scratch settings of the moving rotors, used without _next. */
+    private int[] _stepPosns;
+
     /** Common alphabet of my rotors. */
     private final Alphabet _alphabet;
+    /** True iff _alphabet is the byte alphabet. */
+    private final boolean _isBytes;
 }
 
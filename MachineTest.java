@@ -0,0 +1,1016 @@
+package enigma;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.Rule;
+import org.junit.rules.Timeout;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Scanner;
+import java.util.stream.Stream;
+
+import static enigma.TestUtils.*;
+
+/** The suite of all JUnit tests for the Machine class.
+ *  @author Haoqing Xuan
+ */
+public class MachineTest {
+
+    /** Testing time limit. */
+    @Rule
+    public Timeout globalTimeout = Timeout.seconds(5);
+
+    /* ***** TESTING UTILITIES ***** */
+
+    /** Return a 5-rotor, 3-pawl machine with the naval rotors, set up
+     *  as "* B Beta III IV I AXLE (HQ) (EX) (IP) (TR) (BY)". */
+    private Machine navalMachine() {
+        ArrayList<Rotor> rotors = new ArrayList<>();
+        rotors.add(new Reflector("B", new Permutation(NAVALA.get("B"),
+                                                      UPPER)));
+        rotors.add(new FixedRotor("Beta",
+                                  new Permutation(NAVALA.get("Beta"),
+                                                  UPPER)));
+        rotors.add(new MovingRotor("III",
+                                   new Permutation(NAVALA.get("III"), UPPER),
+                                   "V"));
+        rotors.add(new MovingRotor("IV",
+                                   new Permutation(NAVALA.get("IV"), UPPER),
+                                   "J"));
+        rotors.add(new MovingRotor("I",
+                                   new Permutation(NAVALA.get("I"), UPPER),
+                                   "Q"));
+        Machine m = new Machine(UPPER, 5, 3, rotors);
+        m.insertRotors(new String[] {"B", "Beta", "III", "IV", "I"});
+        m.setRotors("AXLE");
+        m.setPlugboard(new Permutation("(HQ) (EX) (IP) (TR) (BY)", UPPER));
+        return m;
+    }
+
+    /** Return a 4-rotor, 3-pawl Enigma I with the reflector B of the
+     *  German Army and rotors LEFT, MIDDLE and RIGHT, from among I to
+     *  V, in that order. */
+    private Machine armyMachine(String left, String middle,
+                                String right) {
+        ArrayList<Rotor> rotors = new ArrayList<>();
+        rotors.add(new Reflector("UKW-B", new Permutation(
+            "(AY) (BR) (CU) (DH) (EQ) (FS) (GL) (IP) (JX) (KN) (MO)"
+            + " (TZ) (VW)", UPPER)));
+        String[] names = {"I", "II", "III", "IV", "V"};
+        String notches = "QEVJZ";
+        for (int k = 0; k < names.length; k++) {
+            rotors.add(new MovingRotor(names[k], new Permutation(
+                NAVALA.get(names[k]), UPPER), notches.substring(k, k + 1)));
+        }
+        Machine m = new Machine(UPPER, 4, 3, rotors);
+        m.insertRotors(new String[] {"UKW-B", left, middle, right});
+        return m;
+    }
+
+    /** A small configuration file. */
+    private static final byte[] SMALL_CONFIG =
+        ("ABCD 3 1\n  R R (AB) (CD)\n  F N (ABC)\n"
+         + "  M MA (ACBD)\n").getBytes();
+
+    /** Return a configuration file for the byte alphabet, whose
+     *  reflector pairs all 256 byte values. */
+    private static byte[] byteConfig() {
+        StringBuilder config = new StringBuilder("0x00-0xFF 3 1\n  R R");
+        for (int b = 0; b < 256; b += 2) {
+            config.append(String.format(" (%02x%02x)", b, b + 1));
+        }
+        config.append("\n  F N (");
+        for (int b = 0; b < 256; b += 1) {
+            config.append(String.format("%02x", (b * 7 + 3) % 256));
+        }
+        config.append(")\n  M M2800 (");
+        for (int b = 0; b < 256; b += 1) {
+            config.append(String.format("%02x", (b * 45 + 11) % 256));
+        }
+        return config.append(")\n").toString().getBytes();
+    }
+
+    /** Settings for the machine configured by byteConfig(), with
+     *  blanks and parentheses on the plugboard. */
+    private static final String BYTE_SETTINGS =
+        "* R F M 27ff (2028) (0029) (ff0a)";
+
+    /** Return the output of Main for the configuration CONFIG and the
+     *  input INPUT. */
+    private String mainOutput(byte[] config, String input) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new Main(Registry.machine(config), new Scanner(input),
+                 new PrintStream(out)).process();
+        return out.toString();
+    }
+
+    /** Delete the file or directory tree DIR. */
+    private static void deleteTree(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path p : (Iterable<Path>) files
+                     .sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(p);
+            }
+        }
+    }
+
+    /** Set the system property NAME to VALUE, or clear it if VALUE is
+     *  null. */
+    private static void restore(String name, String value) {
+        if (value == null) {
+            System.clearProperty(name);
+        } else {
+            System.setProperty(name, value);
+        }
+    }
+
+    /** Directory of the StateTables built by the tests. */
+    private static Path _tables;
+    /** The enigma.tables.dir property before the tests, or null. */
+    private static String _tablesProperty;
+
+    /** Keep the tests' StateTables out of the user's own directory. */
+    @BeforeClass
+    public static void setUpTables() throws IOException {
+        _tables = Files.createTempDirectory("enigma-tables");
+        _tablesProperty = System.getProperty("enigma.tables.dir");
+        System.setProperty("enigma.tables.dir", _tables.toString());
+    }
+
+    /** Remove the tests' StateTables. */
+    @AfterClass
+    public static void removeTables() throws IOException {
+        restore("enigma.tables.dir", _tablesProperty);
+        deleteTree(_tables);
+    }
+
+    /* ***** TESTS ***** */
+
+    @Test
+    public void testConvertString() {
+        assertEquals("QVPQSOKOILPUBKJZPISFXDW",
+                     navalMachine().convert("FROM HIS SHOULDER HIAWATHA"));
+    }
+
+    @Test
+    public void testBatch() throws IOException {
+        Path dir = Files.createTempDirectory("enigma-batch");
+        try {
+            Path config = dir.resolve("small.conf");
+            Files.write(config, SMALL_CONFIG);
+            String[][] inputs = {
+                {"a.in", "* R F M AB\nABCDABCDAB\n"},
+                {"b.in", "* R F M BA\nDCBA\n* R F M AA\nAAAA\n"},
+                {"sub/c.in", "* R F M CC\nBBBB\n"},
+                {"d.txt", "* R F M DD\nCCCC\n"},
+            };
+            for (String[] input : inputs) {
+                Path file = dir.resolve("in").resolve(input[0]);
+                Files.createDirectories(file.getParent());
+                Files.write(file, input[1].getBytes());
+            }
+            Path out = dir.resolve("glob");
+            assertTrue(new Batch(new String[] {
+                config.toString(), dir.resolve("in/*.in").toString(),
+                out.toString() }).process());
+            for (String[] input : inputs) {
+                Path result = out.resolve(input[0]);
+                assertEquals(input[0], input[0].matches("[ab].in"),
+                             Files.exists(result));
+            }
+            out = dir.resolve("all");
+            assertTrue(new Batch(new String[] {
+                config.toString(), dir.resolve("in").toString(),
+                out.toString() }).process());
+            for (String[] input : inputs) {
+                assertEquals(input[0], mainOutput(SMALL_CONFIG, input[1]),
+                             new String(Files.readAllBytes(
+                                 out.resolve(input[0]))));
+            }
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    @Test
+    public void testBytes() throws IOException {
+        Machine m = Registry.machine(byteConfig());
+        new Settings(BYTE_SETTINGS, 3).apply(m);
+        assertTrue(m.alphabet().isBytes());
+        assertTrue(m.rotor(0).permutation().derangement());
+        byte[] plain = new byte[10000];
+        new Random(27).nextBytes(plain);
+        byte[] cipher = plain.clone();
+        m.convert(cipher, 0, cipher.length);
+        for (int i = 0; i < plain.length; i++) {
+            assertNotEquals(plain[i], cipher[i]);
+        }
+        ByteBuffer buf = ByteBuffer.allocateDirect(plain.length);
+        buf.put(plain).flip();
+        Machine b = Registry.machine(byteConfig());
+        new Settings(BYTE_SETTINGS, 3).apply(b);
+        b.convert(buf);
+        byte[] converted = new byte[plain.length];
+        buf.flip();
+        buf.get(converted);
+        assertArrayEquals(cipher, converted);
+
+        Path dir = Files.createTempDirectory("enigma-bytes");
+        try {
+            Path config = dir.resolve("bytes.conf");
+            Files.write(config, byteConfig());
+            Files.write(dir.resolve("plain"), plain);
+            new ByteMain(new String[] {
+                config.toString(), BYTE_SETTINGS,
+                dir.resolve("plain").toString(),
+                dir.resolve("cipher").toString() }).process();
+            assertArrayEquals(cipher,
+                              Files.readAllBytes(dir.resolve("cipher")));
+            new ByteMain(new String[] {
+                config.toString(), BYTE_SETTINGS,
+                dir.resolve("cipher").toString(),
+                dir.resolve("decoded").toString() }).process();
+            assertArrayEquals(plain,
+                              Files.readAllBytes(dir.resolve("decoded")));
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    @Test
+    public void testContainer() throws IOException {
+        Path dir = Files.createTempDirectory("enigma-container");
+        try {
+            Path config = dir.resolve("bytes.conf");
+            Files.write(config, byteConfig());
+            byte[] plain = new byte[10007];
+            new Random(33).nextBytes(plain);
+            Files.write(dir.resolve("plain"), plain);
+            Path file = dir.resolve("plain.enc");
+            Container.create(config.toString(), BYTE_SETTINGS,
+                             dir.resolve("plain"), file, 1000);
+            Container c = new Container(config.toString(), file);
+            assertEquals(plain.length, c.length());
+            c.extract(dir.resolve("decoded"));
+            assertArrayEquals(plain,
+                              Files.readAllBytes(dir.resolve("decoded")));
+            long[][] ranges = {{0, 0}, {0, 1}, {999, 2}, {2500, 3000},
+                               {10000, 7}, {0, 10007}};
+            for (long[] r : ranges) {
+                assertArrayEquals(
+                    Arrays.copyOfRange(plain, (int) r[0],
+                                       (int) (r[0] + r[1])),
+                    c.read(r[0], (int) r[1]));
+            }
+            try {
+                c.read(Long.MAX_VALUE, 2);
+                fail("read beyond the end");
+            } catch (EnigmaException excp) {
+                /* Expected. */
+            }
+
+            byte[] good = Files.readAllBytes(file);
+            int settings = 2 * 4 + 32;
+            int blockSize = settings + 2 + BYTE_SETTINGS.length();
+            int rotors = blockSize + 4;
+            int length = rotors + 4;
+            int index = length + 8;
+            long[][] damage = {
+                {settings, 2, 0xffff}, {settings, 2, 0x8000},
+                {blockSize, 4, 0}, {blockSize, 4, -1000}, {blockSize, 4, 1},
+                {rotors, 4, 5}, {length, 8, -1}, {length, 8, Long.MAX_VALUE},
+                {length, 8, plain.length + 1}, {index, 4, 256},
+            };
+            for (long[] d : damage) {
+                ByteBuffer bad = ByteBuffer.wrap(good.clone());
+                if (d[1] == 2) {
+                    bad.putShort((int) d[0], (short) d[2]);
+                } else if (d[1] == 4) {
+                    bad.putInt((int) d[0], (int) d[2]);
+                } else {
+                    bad.putLong((int) d[0], d[2]);
+                }
+                Files.write(file, bad.array());
+                try {
+                    new Container(config.toString(), file);
+                    fail(String.format("%d at %d accepted", d[2], d[0]));
+                } catch (EnigmaException excp) {
+                    /* Expected. */
+                }
+            }
+            Files.write(file, Arrays.copyOf(good, good.length - 1));
+            try {
+                new Container(config.toString(), file);
+                fail("truncated container accepted");
+            } catch (EnigmaException excp) {
+                /* Expected. */
+            }
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    @Test
+    public void testPassthrough() {
+        Machine m = navalMachine();
+        m.setPassthrough(true);
+        assertEquals("QVPQ his shoulder, S-O!",
+                     m.convert("FROM his shoulder, H-I!"));
+        Machine d = navalMachine();
+        d.setPassthrough(true);
+        assertEquals("FROM his shoulder, H-I!",
+                     d.convert("QVPQ his shoulder, S-O!"));
+    }
+
+    @Test
+    public void testCompiledMatchesInterpreted() {
+        StringBuilder msg = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            msg.append(UPPER_STRING.charAt((i * 7 + i / 26) % 26));
+        }
+        Machine m = navalMachine();
+        Machine c = navalMachine();
+        c.setCompiled(true);
+        assertEquals(m.convert(msg.toString()), c.convert(msg.toString()));
+        assertArrayEquals(m.positions(), c.positions());
+        Machine t = navalMachine();
+        t.setTables(true);
+        assertEquals(navalMachine().convert(msg.toString()),
+                     t.convert(msg.toString()));
+        assertArrayEquals(m.positions(), t.positions());
+    }
+
+    @Test
+    public void testTiered() {
+        Machine m = navalMachine();
+        Machine t = navalMachine();
+        t.setTiered(true);
+        for (int i = 0; i < 100; i++) {
+            String msg = UPPER_STRING.substring(i % 16, i % 16 + 10);
+            assertEquals(m.convert(msg), t.convert(msg));
+            if (i == 50) {
+                m.setPlugboard(new Permutation("(AZ)", UPPER));
+                t.setPlugboard(new Permutation("(AZ)", UPPER));
+            }
+        }
+        StringBuilder msg = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            msg.append(UPPER_STRING.charAt(i % 26));
+        }
+        m.setPlugboard(null);
+        t.setPlugboard(null);
+        assertEquals(m.convert(msg.toString()), t.convert(msg.toString()));
+        assertArrayEquals(m.positions(), t.positions());
+    }
+
+    @Test
+    public void testResultCache() {
+        String msg = "FROM HIS SHOULDER HIAWATHA";
+        ResultCache cache = new ResultCache(1 << 20);
+        Machine m = navalMachine();
+        Machine c = navalMachine();
+        c.setResultCache(cache);
+        for (int i = 0; i < 3; i++) {
+            int[] start = m.positions();
+            assertEquals(m.convert(msg), c.convert(msg));
+            assertArrayEquals(m.positions(), c.positions());
+            m.setPositions(start);
+            c.setPositions(start);
+        }
+        assertEquals(1, cache.size());
+        c.setPlugboard(null);
+        m.setPlugboard(null);
+        assertEquals(m.convert(msg), c.convert(msg));
+        assertEquals(2, cache.size());
+        ResultCache small = new ResultCache(400);
+        c.setResultCache(small);
+        c.convert(msg);
+        c.convert(msg);
+        assertEquals(1, small.size());
+        assertTrue(small.weight() <= small.budget());
+
+        byte[] other = ("ABCD 3 1\n  R R (AB) (CD)\n  F N (ABC)\n"
+                        + "  M MA (ABCD)\n").getBytes();
+        String text = "ABCDABCDDCBA";
+        ResultCache shared = new ResultCache(1 << 20);
+        String[] expected = new String[2];
+        int[][] after = new int[2][];
+        Machine[] machines = new Machine[2];
+        byte[][] configs = {SMALL_CONFIG.clone(), other};
+        for (int k = 0; k < 2; k++) {
+            Machine plain = Registry.machine(configs[k]);
+            plain.insertRotors(new String[] {"R", "F", "M"});
+            plain.setRotors("AA");
+            expected[k] = plain.convert(text);
+            after[k] = plain.positions();
+            machines[k] = Registry.machine(configs[k]);
+            machines[k].insertRotors(new String[] {"R", "F", "M"});
+            machines[k].setRotors("AA");
+            machines[k].setResultCache(shared);
+        }
+        assertNotEquals(expected[0], expected[1]);
+        for (int k = 0; k < 2; k++) {
+            assertEquals(expected[k], machines[k].convert(text));
+            assertArrayEquals(after[k], machines[k].positions());
+        }
+        assertEquals(2, shared.size());
+    }
+
+    @Test
+    public void testBudget() {
+        String msg = "FROMHISSHOULDERHIAWATHA";
+        String expected = navalMachine().convert(msg);
+        String heap = System.getProperty("enigma.budget.heap");
+        String offHeap = System.getProperty("enigma.budget.offheap");
+        System.setProperty("enigma.budget.heap", "1");
+        try {
+            Machine m = navalMachine();
+            ResultCache cache = new ResultCache(1 << 20);
+            m.setResultCache(cache);
+            assertEquals(expected, m.convert(msg));
+            assertEquals(0, cache.size());
+            assertFalse(m.rotor(4).permutation().keepsConjugates());
+            Machine jumped = navalMachine();
+            jumped.advance(20000);
+            Machine stepped = navalMachine();
+            for (int i = 0; i < 20000; i++) {
+                stepped.convert(0);
+            }
+            assertArrayEquals(stepped.positions(), jumped.positions());
+        } finally {
+            restore("enigma.budget.heap", heap);
+        }
+
+        Budget.Space space = Budget.Space.OFF_HEAP;
+        ArrayList<Object> evicted = new ArrayList<>();
+        Budget.Owner owner = evicted::add;
+        long cap = Budget.held(space) + 1000;
+        System.setProperty("enigma.budget.offheap", Long.toString(cap));
+        try {
+            assertNull(Budget.reserve(owner, "X", 2000, space, 1));
+            Budget.Charge a = Budget.reserve(owner, "A", 600, space, 1);
+            assertSame(a, Budget.reserve(owner, "A", 600, space, 1));
+            Budget.Charge b = Budget.reserve(owner, "B", 600, space, 1000);
+            assertNotNull(b);
+            assertTrue(b.live());
+            assertTrue(Budget.held(space) <= cap);
+            assertEquals(a.live(), !evicted.contains("A"));
+            a.release();
+            assertNull(Budget.hold(600, space, 1));
+            Budget.Charge work = Budget.hold(300, space, 1000);
+            assertNotNull(work);
+            assertNull(Budget.reserve(owner, "C", 600, space, 1));
+            assertTrue(work.live());
+            assertNull(work.key());
+            work.release();
+            assertFalse(work.live());
+            b.release();
+            String first = new String("D");
+            Budget.Charge d = Budget.reserve(owner, first, 600, space, 1);
+            assertSame(first, d.key());
+            assertSame(first, Budget.reserve(owner, new String("D"), 600,
+                                             space, 1).key());
+            d.release();
+            assertFalse(b.live());
+        } finally {
+            restore("enigma.budget.offheap", offHeap);
+        }
+
+        Object key = new Object();
+        assertNotNull(Budget.reserve(owner, key, 1, Budget.Space.HEAP, 1));
+        int size = Budget.size();
+        key = null;
+        for (int i = 0; i < 100 && Budget.size() >= size; i++) {
+            System.gc();
+        }
+        assertTrue(Budget.size() < size);
+    }
+
+    @Test
+    public void testRingSettings() {
+        Machine m = navalMachine();
+        m.setRotors("BYMF");
+        m.setRings("BBBB");
+        assertEquals("QVPQSOKO", m.convert("FROMHISS"));
+        m.insertRotors(new String[] {"B", "Beta", "III", "IV", "I"});
+        m.setRotors("AXLE");
+        assertEquals(0, m.rotor(4).ring());
+        m.setRings("AAAC");
+        Machine c = navalMachine();
+        c.setRings("AAAC");
+        c.setCompiled(true);
+        assertEquals(m.convert("FROMHISSHOULDER"),
+                     c.convert("FROMHISSHOULDER"));
+
+        /* The rotors double-step: ADV, AEW, BFX, BFY, BFZ. */
+        Machine a = armyMachine("I", "II", "III");
+        a.setRotors("ADU");
+        assertEquals("EQIBM", a.convert("AAAAA"));
+        assertArrayEquals(new int[] {0, 1, 5, 25}, a.positions());
+
+        /* Part of a German Army message of 7 July 1941.  The middle
+         *  rotor turns over nine times with rings other than A. */
+        String cipher = "EDPUDNRGYSZRCXNUYTPOMRMBOFKTBZREZKMLXLVEFGUEYSIOZV"
+            + "EQMIKUBPMMYLKLTTDEISMDICAGYKUACTCDOMOHWXMUUIAUBSTSLRNBZS"
+            + "ZWNRFXWFYSSXJZVIJHIDISHPRKLKAYUPADTXQSPINQMATLPIFSVKDASC"
+            + "TACDPBOPVHJK";
+        String plain = "AUFKLXABTEILUNGXVONXKURTINOWAXKURTINOWAXNORDWESTLX"
+            + "SEBEZXSEBEZXUAFFLIEGERSTRASZERIQTUNGXDUBROWKIXDUBROWKIXO"
+            + "POTSCHKAXOPOTSCHKAXUMXEINSAQTDREINULLXUHRANGETRETENXANGR"
+            + "IFFXINFXRGTX";
+        String line = "* UKW-B II IV V BLA BUL (AV) (BS) (CG) (DL) (FU)"
+            + " (HZ) (IN) (KM) (OW) (RX)";
+        for (int mode = 0; mode < 3; mode++) {
+            Machine b = armyMachine("I", "II", "III");
+            new Settings(line, 4).apply(b);
+            b.setCompiled(mode == 1);
+            b.setTables(mode == 2);
+            assertEquals(plain, b.convert(cipher));
+        }
+    }
+
+    @Test
+    public void testReencrypt() {
+        String plain = "FROMHISSHOULDERHIAWATHATOOKTHECAMERAOFROSEWOOD";
+        String edited = "FROMHISSHOULDERMINNEHAHATOOKTHECAMERAOFROSEWOOD";
+        Machine m = navalMachine();
+        int[] start = m.positions();
+        String cipher = m.convert(plain);
+        String expected = navalMachine().convert(edited);
+        Machine e = navalMachine();
+        assertEquals(expected,
+                     e.reencrypt(start, cipher, 15, 8, "MINNEHAHA"));
+        Machine full = navalMachine();
+        full.convert(edited);
+        assertArrayEquals(full.positions(), e.positions());
+        String same = "FROMHISSHOULDERHIAWATHATOOKTHECAMERAOFHICKORY";
+        String replaced = navalMachine().convert(same);
+        assertEquals(replaced, e.reencrypt(start, cipher.substring(0, 45),
+                                           38, 7, "HICKORY"));
+        Machine sameFull = navalMachine();
+        sameFull.convert(same);
+        assertArrayEquals(sameFull.positions(), e.positions());
+        Machine u = navalMachine();
+        Machine v = navalMachine();
+        for (int n : new int[] {100000, 27, 5000, 200000, 27, 0}) {
+            u.advance(n);
+            for (int i = 0; i < n; i++) {
+                v.convert(0);
+            }
+            assertArrayEquals(v.positions(), u.positions());
+        }
+        Machine t = navalMachine();
+        t.setTables(true);
+        t.advance(100000);
+        Machine s = navalMachine();
+        for (int i = 0; i < 100000; i++) {
+            s.convert(0);
+        }
+        assertArrayEquals(s.positions(), t.positions());
+    }
+
+    @Test
+    public void testSweep() {
+        String[] lines = {
+            "* B Beta III IV I AXLE (HQ) (EX) (IP) (TR) (BY)",
+            "* B Beta IV III I QZVB",
+            "* B Beta I IV III ABCD BCDE (AB)",
+        };
+        String msg = "FROMHISSHOULDERHIAWATHATOOKTHECAMERAOFROSEWOOD";
+        Sweep sweep = new Sweep(navalMachine());
+        for (String line : lines) {
+            sweep.add(line);
+        }
+        String[] results = sweep.convert(msg);
+        assertEquals(lines.length, results.length);
+        for (int k = 0; k < lines.length; k++) {
+            Machine m = navalMachine();
+            new Settings(lines[k], 5).apply(m);
+            assertEquals(lines[k], m.convert(msg), results[k]);
+        }
+    }
+
+    @Test
+    public void testOrbit() {
+        CompiledMachine engine = navalMachine().compile();
+        StateTable table = StateTable.get(engine);
+        StateTable.Orbit orbit = table.orbit(engine.state());
+        assertEquals(26 * 25 * 26, orbit.length());
+        for (int i = 1; i < 1000; i++) {
+            engine.step();
+            assertEquals(engine.state(), orbit.stateAt(i));
+        }
+        assertEquals(orbit.stateAt(17), orbit.stateAt(17 + 26 * 25 * 26));
+    }
+
+    @Test
+    public void testMetrics() {
+        Metrics metrics = Metrics.get();
+        metrics.reset();
+        metrics.count(Metrics.Cache.ENGINE, true);
+        metrics.count(Metrics.Cache.ENGINE, true);
+        metrics.count(Metrics.Cache.ENGINE, false);
+        metrics.count(Metrics.Cache.RESULTS, false);
+        metrics.count(Metrics.Stage.CONVERT, 2000, 100);
+        metrics.count(Metrics.Stage.CONVERT, 3000, 50);
+        metrics.count(Metrics.Stage.SETUP, 500, 0);
+        assertEquals(2.0 / 3, metrics.getEngineHitRate(), 1e-9);
+        assertEquals(0, metrics.getResultsHitRate(), 0);
+        assertEquals(0, metrics.getTablesHitRate(), 0);
+        assertEquals(0, metrics.misses(Metrics.Cache.TABLES));
+        assertEquals(150, metrics.getCharacters());
+        assertEquals(2, metrics.getMessages());
+        assertEquals(1, metrics.getSetups());
+        assertEquals(5000, metrics.getConvertNanos());
+        assertEquals(3e7, metrics.getCharactersPerSecond(), 1e-3);
+        metrics.reset();
+        assertEquals(0, metrics.hits(Metrics.Cache.ENGINE));
+        assertEquals(0, metrics.getCharacters());
+    }
+
+    @Test
+    public void testTableFiles() throws IOException {
+        Machine a = navalMachine();
+        Machine b = navalMachine();
+        a.setPlugboard(new Permutation("(QZ) (JX)", UPPER));
+        b.setPlugboard(new Permutation("(QZ) (KX)", UPPER));
+        CompiledMachine ea = a.compile();
+        CompiledMachine eb = b.compile();
+        assertNotNull(StateTable.get(ea));
+        Path file = _tables.resolve(eb.key() + ".tbl");
+        Files.copy(_tables.resolve(ea.key() + ".tbl"), file);
+        StateTable table = StateTable.get(eb);
+        for (int s = 0; s < table.states(); s += 97) {
+            eb.setState(s);
+            for (int c = 0; c < 26; c++) {
+                assertEquals(eb.encipher(c), table.convert(s, c));
+            }
+        }
+        assertFalse(Arrays.equals(
+            Files.readAllBytes(_tables.resolve(ea.key() + ".tbl")),
+            Files.readAllBytes(file)));
+
+        Path shared = Files.createTempDirectory(_tables, "shared");
+        Files.setPosixFilePermissions(
+            shared, PosixFilePermissions.fromString("rwxrwxrwx"));
+        System.setProperty("enigma.tables.dir", shared.toString());
+        try {
+            Machine c = navalMachine();
+            c.setPlugboard(new Permutation("(QZ) (LX)", UPPER));
+            assertNotNull(StateTable.get(c.compile()));
+            try (Stream<Path> files = Files.list(shared)) {
+                assertEquals(0, files.count());
+            }
+        } finally {
+            System.setProperty("enigma.tables.dir", _tables.toString());
+        }
+    }
+
+    @Test
+    public void testStepping() {
+        Machine m = navalMachine();
+        m.setStepping(Stepping.ODOMETER);
+        m.setRotors("AXZZ");
+        m.convert(0);
+        assertArrayEquals(new int[] {0, 0, 24, 0, 0}, m.positions());
+
+        Machine d = navalMachine();
+        Machine g = navalMachine();
+        g.setStepping(Stepping.COG);
+        d.setRotors("AXJA");
+        g.setRotors("AXJA");
+        d.convert(0);
+        g.convert(0);
+        assertArrayEquals(new int[] {0, 0, 24, 10, 1}, d.positions());
+        assertArrayEquals(new int[] {0, 0, 23, 9, 1}, g.positions());
+
+        String msg = "FROMHISSHOULDERHIAWATHATOOKTHECAMERAOFROSEWOOD";
+        for (Stepping model : new Stepping[] {
+                Stepping.DOUBLE, Stepping.ODOMETER, Stepping.COG }) {
+            Machine i = navalMachine();
+            Machine c = navalMachine();
+            Machine t = navalMachine();
+            i.setStepping(model);
+            c.setStepping(model);
+            t.setStepping(model);
+            c.setCompiled(true);
+            t.setTables(true);
+            String expected = i.convert(msg);
+            assertEquals(model.name(), expected, c.convert(msg));
+            assertEquals(model.name(), expected, t.convert(msg));
+            Machine s = navalMachine();
+            s.setStepping(model);
+            Sweep sweep = new Sweep(s);
+            sweep.add("* B Beta III IV I AXLE (HQ) (EX) (IP) (TR) (BY)");
+            assertEquals(model.name(), expected, sweep.convert(msg)[0]);
+        }
+    }
+
+    @Test
+    public void testRegistry() {
+        byte[] config = SMALL_CONFIG.clone();
+        Registry.clear();
+        Machine m = Registry.machine(config);
+        Machine n = Registry.machine(config.clone());
+        assertEquals(1, Registry.size());
+        assertNotSame(m, n);
+        m.insertRotors(new String[] {"R", "F", "M"});
+        n.insertRotors(new String[] {"R", "F", "M"});
+        n.setRotors("AA");
+        m.setRotors("AB");
+        assertArrayEquals(new int[] {0, 0, 0}, n.positions());
+        assertArrayEquals(new int[] {0, 0, 1}, m.positions());
+        try {
+            Registry.machine("ABCD 3".getBytes());
+            fail("truncated configuration accepted");
+        } catch (EnigmaException excp) {
+            assertEquals(1, Registry.size());
+        }
+    }
+
+    @Test
+    public void testCatalog() throws IOException {
+        Path config = Files.createTempFile(_tables, "small", ".conf");
+        Files.write(config, SMALL_CONFIG);
+        Path index = _tables.resolve("small.idx");
+        Catalog catalog = new Catalog(config.toString());
+        assertEquals(16, catalog.build(index, new ArrayList<>()));
+        assertTrue(catalog.lookup(index, "0/0/0").isEmpty());
+
+        byte[] good = Files.readAllBytes(index);
+        byte[] bad = good.clone();
+        ByteBuffer.wrap(bad).putShort(44, (short) 0x8000);
+        Files.write(index, bad);
+        try {
+            catalog.lookup(index, "0/0/0");
+            fail("overlong rotor order name accepted");
+        } catch (EnigmaException excp) {
+            /* OK */
+        }
+        Files.write(index, Arrays.copyOf(good, good.length - 1));
+        try {
+            catalog.lookup(index, "0/0/0");
+            fail("truncated catalog accepted");
+        } catch (EnigmaException excp) {
+            /* OK */
+        }
+    }
+
+    @Test
+    public void testCascade() {
+        String msg = "FROMHISSHOULDERHIAWATHATOOKTHECAMERAOFROSEWOOD";
+        Machine first = navalMachine();
+        Machine second = navalMachine();
+        second.insertRotors(new String[] {"B", "Beta", "I", "III", "IV"});
+        second.setRotors("QRST");
+        second.setPlugboard(new Permutation("(AZ)", UPPER));
+        String expected = second.convert(first.convert(msg));
+
+        ArrayList<Machine> stages = new ArrayList<>();
+        stages.add(navalMachine());
+        stages.add(navalMachine());
+        Cascade cascade = new Cascade(stages);
+        cascade.setUp("* B Beta III IV I AXLE (HQ) (EX) (IP) (TR) (BY)"
+                      + " | * B Beta I III IV QRST (AZ)");
+        assertEquals(expected, cascade.convert(msg.substring(0, 10))
+                     + cascade.convert(msg.substring(10)));
+        assertArrayEquals(first.positions(), cascade.stage(0).positions());
+        assertArrayEquals(second.positions(), cascade.stage(1).positions());
+    }
+
+    @Test
+    public void testAnalyzer() {
+        int window = 40;
+        int periods = 5;
+        Analyzer analyzer = new Analyzer(UPPER, window, periods);
+        Random random = new Random(42);
+        int[] text = new int[300];
+        for (int t = 0; t < text.length; t++) {
+            text[t] = random.nextInt(4) == 0 ? random.nextInt(26)
+                : random.nextInt(5);
+            analyzer.add(text[t]);
+            int from = Math.max(0, t + 1 - window);
+            int n = t + 1 - from;
+            assertEquals(n, analyzer.count());
+            int[] unigrams = new int[26];
+            int[] bigrams = new int[26 * 26];
+            for (int i = from; i <= t; i++) {
+                unigrams[text[i]] += 1;
+                if (i > from) {
+                    bigrams[text[i - 1] * 26 + text[i]] += 1;
+                }
+            }
+            long pairs = 0;
+            for (int c = 0; c < 26; c++) {
+                assertEquals(unigrams[c], analyzer.unigram(c));
+                pairs += (long) unigrams[c] * (unigrams[c] - 1);
+            }
+            long bigramPairs = 0;
+            for (int b = 0; b < bigrams.length; b++) {
+                assertEquals(bigrams[b], analyzer.bigram(b / 26, b % 26));
+                bigramPairs += (long) bigrams[b] * (bigrams[b] - 1);
+            }
+            double ic = n < 2 ? 0 : (double) pairs * 26 / (n * (n - 1));
+            assertEquals(ic, analyzer.ic(), 1e-9);
+            long m = n - 1;
+            double bigramIc = m < 2 ? 0
+                : (double) bigramPairs * 26 * 26 / (m * (m - 1));
+            assertEquals(bigramIc, analyzer.bigramIc(), 1e-9);
+            for (int p = 1; p <= periods; p++) {
+                int matches = 0;
+                for (int i = from + p; i <= t; i++) {
+                    if (text[i] == text[i - p]) {
+                        matches += 1;
+                    }
+                }
+                double kappa = n <= p ? 0 : (double) matches * 26 / (n - p);
+                assertEquals(kappa, analyzer.kappa(p), 1e-9);
+            }
+        }
+        assertEquals(300, analyzer.total());
+    }
+
+    @Test
+    public void testHistogram() {
+        for (long v = 0; v < 64; v += 1) {
+            assertEquals(v, Histogram.bucket(v));
+            assertEquals(v, Histogram.highest((int) v));
+        }
+        assertEquals(64, Histogram.bucket(64));
+        assertEquals(64, Histogram.bucket(65));
+        assertEquals(65, Histogram.bucket(66));
+        assertEquals(65, Histogram.highest(64));
+        int last = Histogram.bucket(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, Histogram.highest(last));
+        Random random = new Random(7);
+        for (int i = 0; i < 10000; i++) {
+            long v = random.nextLong() >>> (1 + random.nextInt(63));
+            int b = Histogram.bucket(v);
+            assertTrue(Histogram.highest(b) >= v);
+            assertTrue(b == 0 || Histogram.highest(b - 1) < v);
+            assertTrue(Histogram.highest(b) - v <= v / 32);
+        }
+
+        Histogram h = new Histogram();
+        assertEquals(0, h.percentile(0.5));
+        for (long v = 1; v <= 1000; v += 1) {
+            h.record(v);
+        }
+        h.record(-5);
+        assertEquals(1001, h.count());
+        assertEquals(0, h.percentile(0));
+        assertEquals(Histogram.highest(Histogram.bucket(500)),
+                     h.percentile(0.5));
+        assertEquals(Histogram.highest(Histogram.bucket(990)),
+                     h.percentile(0.99));
+        assertEquals(Histogram.highest(Histogram.bucket(1000)),
+                     h.percentile(1.0));
+        h.reset();
+        assertEquals(0, h.count());
+    }
+
+    @Test
+    public void testService() throws Exception {
+        Service service = new Service(SMALL_CONFIG.clone());
+        PipedOutputStream toService = new PipedOutputStream();
+        PipedInputStream serviceIn = new PipedInputStream(toService);
+        PipedOutputStream serviceOut = new PipedOutputStream();
+        PipedInputStream fromService = new PipedInputStream(serviceOut);
+        Thread session = new Thread(() -> {
+            try {
+                service.session(serviceIn, serviceOut);
+                serviceOut.close();
+            } catch (IOException excp) {
+                throw new UncheckedIOException(excp);
+            }
+        });
+        session.start();
+
+        toService.write('A');
+        toService.flush();
+        assertEquals("ERR no settings line", readLine(fromService));
+        toService.write("* R F X AB\n".getBytes(StandardCharsets.UTF_8));
+        toService.flush();
+        assertTrue(readLine(fromService).startsWith("ERR "));
+        toService.write("* R F M AB\n".getBytes(StandardCharsets.UTF_8));
+        toService.flush();
+        assertEquals("OK", readLine(fromService));
+
+        Machine m = Registry.machine(SMALL_CONFIG.clone());
+        new Settings("* R F M AB", m.numRotors()).apply(m);
+        for (char ch : "ABCDDCBA".toCharArray()) {
+            toService.write(ch);
+            toService.flush();
+            char expected = UPPER.toChar(m.convert(m.alphabet().toInt(ch)));
+            assertEquals(expected, fromService.read());
+        }
+        byte[] other = "\u00e9".getBytes(StandardCharsets.UTF_8);
+        toService.write(other);
+        toService.flush();
+        for (byte b : other) {
+            assertEquals(b & 0xff, fromService.read());
+        }
+        toService.close();
+        session.join();
+        assertEquals(-1, fromService.read());
+        assertEquals(9, service.latencies().count());
+    }
+
+    /** Return the next line read from IN, without its newline. */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        for (int b = in.read(); b >= 0 && b != '\n'; b = in.read()) {
+            line.write(b);
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testKeySheet() throws IOException {
+        KeySheet sheet = new KeySheet(navalMachine(), 3);
+        StringWriter out = new StringWriter();
+        sheet.write(out, 5000, 1);
+        String[] lines = out.toString().split("\n");
+        assertEquals(5000, lines.length);
+        assertEquals(5000, new HashSet<>(Arrays.asList(lines)).size());
+        Machine m = navalMachine();
+        for (String line : lines) {
+            new Settings(line, m.numRotors()).apply(m);
+        }
+
+        KeySheet.KeySet keys = new KeySheet.KeySet(10, 2);
+        assertTrue(keys.add(new long[] {1, 2}));
+        assertTrue(keys.add(new long[] {2, 1}));
+        assertFalse(keys.add(new long[] {1, 2}));
+        for (long k = 0; k < 1000; k += 1) {
+            keys.add(new long[] {k, 0});
+        }
+        assertEquals(1002, keys.size());
+
+        Path config = Files.createTempFile(_tables, "small", ".conf");
+        Files.write(config, SMALL_CONFIG);
+        PrintStream stdout = System.out;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream printer = new PrintStream(bytes, true);
+        System.setOut(printer);
+        try {
+            KeySheet.main("--plugs=1", config.toString(), "2");
+            printer.print("after");
+            printer.flush();
+            assertFalse(printer.checkError());
+        } finally {
+            System.setOut(stdout);
+        }
+        String[] printed = bytes.toString().split("\n");
+        assertEquals(3, printed.length);
+        assertEquals("after", printed[2]);
+    }
+
+    @Test
+    public void testCrib() {
+        String cipher = navalMachine().convert(
+            "QQQQQWETTERBERICHTQQQQQQQQQQQQQQQQQQQQQQQQQQQQQQQQQQQQQQQQQQ"
+            + "QQQQQQQQQQQQQQQQQQQQQQQQQQQQQQQQQQQQQQQQQQQQQQ");
+        String[] cribs = {
+            "WETTERBERICHT",
+            "WETTERBERICHTQQQQQQQQQQQQQQQQQQQQQQQQQQQQQQQQQQQQQQQQQQQQQQQQ"
+            + "QQQQQQQQQQQQQQQQ"
+        };
+        for (String text : cribs) {
+            ArrayList<Long> found = new ArrayList<>();
+            new Crib(UPPER, text).scan(cipher,
+                                       (line, offset) -> found.add(offset));
+            for (int k = 0; k + text.length() <= cipher.length(); k++) {
+                boolean feasible = true;
+                for (int j = 0; j < text.length(); j++) {
+                    feasible &= cipher.charAt(k + j) != text.charAt(j);
+                }
+                assertEquals(feasible, found.contains((long) k));
+            }
+            assertTrue(found.contains(5L));
+        }
+    }
+
+}
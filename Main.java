@@ -4,7 +4,12 @@ import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
 
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.Scanner;
@@ -17,7 +22,8 @@ import static enigma.EnigmaException.*;
 public final class Main {
 
     /** Process a sequence of encryptions and decryptions, as
-     *  specified by ARGS, where 1 <= ARGS.length <= 3.
+     *  specified by ARGS, where 1 <= ARGS.length <= 3 after any leading
+     *  options (see option) are removed.
      *  ARGS[0] is the name of a configuration file.
      *  ARGS[1] is optional; when present, it names an input file
      *  containing messages.  Otherwise, input comes from the standard
@@ -37,16 +43,26 @@ public final class Main {
 
     /** Check ARGS and open the necessary files (see comment on main). */
     Main(String[] args) {
+        int first;
+        for (first = 0; first < args.length
+                 && args[first].startsWith("--"); first += 1) {
+            option(args[first]);
+        }
+        args = Arrays.copyOfRange(args, first, args.length);
         if (args.length < 1 || args.length > 3) {
             throw error("Only 1, 2, or 3 command-line arguments allowed");
         }
 
-        _config = getInput(args[0]);
+        try {
+            _configText = Files.readAllBytes(Paths.get(args[0]));
+        } catch (IOException excp) {
+            throw error("could not open %s", args[0]);
+        }
 
         if (args.length > 1) {
             _input = getInput(args[1]);
         } else {
-            _input = new Scanner(System.in);
+            _input = new Scanner(System.in, StandardCharsets.UTF_8);
         }
 
         if (args.length > 2) {
@@ -56,19 +72,86 @@ public final class Main {
         }
     }
 
-    /** Return a Scanner reading from the file named NAME. */
-    private Scanner getInput(String name) {
+    /** A Main that reads its configuration from CONFIG, its messages
+     *  from INPUT, and writes results to OUTPUT.  INPUT and OUTPUT may
+     *  be null if this Main is only used to read a configuration. */
+    Main(Scanner config, Scanner input, PrintStream output) {
+        _config = config;
+        _input = input;
+        _output = output;
+    }
+
+    /** A Main that applies the already-configured machine MACHINE to
+     *  the messages in INPUT, writing results to OUTPUT.  MACHINE is
+     *  typically a copy() of a machine shared by several Mains. */
+    Main(Machine machine, Scanner input, PrintStream output) {
+        _machine = machine;
+        _alphabet = machine.alphabet();
+        _input = input;
+        _output = output;
+    }
+
+    /** Apply the command-line option OPT.  The options are
+     *    --preserve  Pass characters that are not in the alphabet
+     *                through unchanged and print messages verbatim,
+     *                rather than removing blanks and grouping the
+     *                result in fives.
+     *    --compiled  Convert each message with a CompiledMachine.
+     *    --tables    Convert each message with a StateTable, kept on
+     *                disk between runs.
+     *    --tiered    Convert each message as the machine finds best for
+     *                its length and how often its key has been used
+     *                (see Machine.setTiered).
+     *    --cache=N   Keep the results of converting messages in a
+     *                ResultCache of at most N bytes, so that repeated
+     *                messages are converted once.
+     *    --stepping=NAME  Step the rotors by the Stepping model NAME
+     *                (double, odometer or cog) rather than double. */
+    void option(String opt) {
+        if (opt.startsWith("--stepping=")) {
+            _stepping = Stepping.forName(opt.substring(opt.indexOf('=') + 1));
+            return;
+        }
+        if (opt.startsWith("--cache=")) {
+            try {
+                _results = new ResultCache(
+                    Long.parseLong(opt.substring(opt.indexOf('=') + 1)));
+            } catch (NumberFormatException excp) {
+                throw error("bad number in %s", opt);
+            }
+            return;
+        }
+        switch (opt) {
+        case "--preserve":
+            _preserve = true;
+            break;
+        case "--compiled":
+            _compiled = true;
+            break;
+        case "--tables":
+            _tables = true;
+            break;
+        case "--tiered":
+            _tiered = true;
+            break;
+        default:
+            throw error("unknown option %s", opt);
+        }
+    }
+
+    /** Return a Scanner reading from the file named NAME, in UTF-8. */
+    static Scanner getInput(String name) {
         try {
-            return new Scanner(new File(name));
+            return new Scanner(new File(name), StandardCharsets.UTF_8);
         } catch (IOException excp) {
             throw error("could not open %s", name);
         }
     }
 
-    /** Return a PrintStream writing to the file named NAME. */
-    private PrintStream getOutput(String name) {
+    /** Return a PrintStream writing to the file named NAME, in UTF-8. */
+    static PrintStream getOutput(String name) {
         try {
-            return new PrintStream(new File(name));
+            return new PrintStream(new File(name), StandardCharsets.UTF_8);
         } catch (IOException excp) {
             throw error("could not open %s", name);
         }
@@ -77,8 +160,16 @@ public final class Main {
     /** Configure an Enigma machine from the contents of configuration
      *  file _config and apply it to the messages in _input, sending the
      *  results to _output. */
-    private void process() {
-        Machine enigma = readConfig();
+    void process() {
+        Machine enigma = machine();
+        enigma.setPassthrough(_preserve);
+        enigma.setCompiled(_compiled);
+        enigma.setTables(_tables);
+        enigma.setTiered(_tiered);
+        enigma.setResultCache(_results);
+        if (_stepping != null) {
+            enigma.setStepping(_stepping);
+        }
         String next = _input.nextLine();
         if (next.charAt(0) != '*') {
             throw error("wrong input format");
@@ -91,20 +182,62 @@ public final class Main {
                 _output.println(nextLine);
                 continue;
             }
-            if (nextLine.contains("*")) {
+            if (_preserve ? nextLine.startsWith("*")
+                : nextLine.contains("*")) {
                 setUp(enigma, nextLine);
+                continue;
+            }
+            long allocated = Metrics.allocated();
+            long start = Metrics.start();
+            String output = enigma.convert(nextLine);
+            Metrics.end(Metrics.Stage.CONVERT, start, output.length());
+            _converted += output.length();
+            start = Metrics.start();
+            if (_preserve) {
+                _output.print(output + "\r\n");
             } else {
-                String output = enigma.convert(nextLine);
                 printMessageLine(output);
             }
+            Metrics.end(Metrics.Stage.OUTPUT, start, output.length());
+            Metrics.allocatedSince(allocated);
         }
     }
 
+    /** Return my machine, reading it from _config the first time, or
+     *  taking a copy from the Registry if I was given a configuration
+     *  file's contents. */
+    Machine machine() {
+        if (_machine == null) {
+            long start = Metrics.start();
+            if (_configText != null) {
+                _machine = Registry.machine(_configText);
+                _alphabet = _machine.alphabet();
+            } else {
+                _machine = readConfig();
+            }
+            Metrics.end(Metrics.Stage.CONFIG, start, 0);
+        }
+        return _machine;
+    }
+
+    /** Return the number of characters converted by process() so far. */
+    long converted() {
+        return _converted;
+    }
+
     /** Return an Enigma machine configured from the contents of configuration
-     *  file _config. */
+     *  file _config.  An alphabet given as Alphabet.BYTES_NAME denotes
+     *  Alphabet.bytes(), whose rotors' cycles and notches are written in
+     *  hexadecimal, two digits per byte value, as in "R1 M41 (00ff41)"
+     *  (see Alphabet.decode). */
     private Machine readConfig() {
         try {
-            _alphabet = new Alphabet(_config.next());
+            String alphabet = _config.next();
+            if (alphabet.equals(Alphabet.BYTES_NAME)) {
+                _alphabet = Alphabet.bytes();
+            } else {
+                _alphabet = new Alphabet(alphabet);
+            }
             if (!_config.hasNextLine()) {
                 throw error("Wrong input");
             }
@@ -169,7 +302,7 @@ public final class Main {
             } else {
                 Rotor rotor = new MovingRotor(rotorname,
                         new Permutation(permuted, _alphabet),
-                        notch.substring(1));
+                        _alphabet.decode(notch.substring(1)));
 
                 return rotor;
             }
@@ -180,48 +313,65 @@ public final class Main {
 
 
     /** Set M according to the specification given on SETTINGS,
-     *  which must have the format specified in the assignment. */
-    private void setUp(Machine M, String settings) {
-        String[] contents = settings.split(" ");
-        if (contents.length < M.numRotors() + 1) {
-            throw error("Need more info about rotors");
-        }
-        String[] rotorInfo = new String[M.numRotors()];
-        for (int i = 0; i < M.numRotors(); i++) {
-            if (M.rotorExist(contents[i + 1])) {
-                rotorInfo[i] = contents[i + 1];
-            } else {
-                throw new EnigmaException("invalid rotor name");
-            }
-
-        }
-        M.insertRotors(rotorInfo);
-        M.setRotors(contents[M.numRotors() + 1]);
-
-        if (M.numRotors() + 2 < contents.length) {
-            String cycles = "";
-            for (int i = M.numRotors() + 2; i < contents.length; i++) {
-                cycles += contents[i];
-            }
-            M.setPlugboard(new Permutation(cycles, _alphabet));
-        }
+     *  which must have the format specified in the assignment, except
+     *  that the rotor settings may be followed by ring settings in the
+     *  same form, as in "* B Beta III IV I AXLE BAAA (HQ) (EX)". */
+    void setUp(Machine M, String settings) {
+        long start = Metrics.start();
+        new Settings(settings, M.numRotors()).apply(M);
+        Metrics.end(Metrics.Stage.SETUP, start, 0);
     }
 
     /** Print MSG in groups of five (except that the last group may
-     *  have fewer letters). */
+     *  have fewer letters).  The line is formatted first and printed
+     *  with a single call, since each call on a PrintStream encodes and
+     *  writes its text separately. */
     private void printMessageLine(String msg) {
         if (msg.isEmpty()) {
             _output.println();
         }
-        for (int i = 0; i < msg.length(); i++) {
-            _output.print(msg.charAt(i));
-            if ((i + 1) % 5 == 0 && i != msg.length() - 1) {
-                _output.print(" ");
+        _output.print(groups(msg));
+    }
+
+    /** Return MSG in groups of five separated by blanks (except that
+     *  the last group may have fewer letters), ending in CR LF. */
+    static String groups(String msg) {
+        int len = msg.length();
+        StringBuilder line = new StringBuilder(len + len / 5 + 2);
+        for (int i = 0; i < len; i += 5) {
+            if (i > 0) {
+                line.append(' ');
             }
+            line.append(msg, i, Math.min(i + 5, len));
         }
-        _output.print("\r\n");
+        return line.append("\r\n").toString();
     }
 
+    /** The machine I drive, or null if not yet read from _config. */
+    private Machine _machine;
+
+    /** True iff messages are converted in passthrough mode. */
+    private boolean _preserve;
+
+    /** True iff messages are converted by a CompiledMachine. */
+    private boolean _compiled;
+
+    /** True iff messages are converted using a StateTable. */
+    private boolean _tables;
+
+    /** True iff each message's engine is chosen by the machine. */
+    private boolean _tiered;
+
+    /** Cache of converted messages given by option, or null. */
+    private ResultCache _results;
+
+    /** The stepping model given by option, or null to use the
+     *  machine's own. */
+    private Stepping _stepping;
+
+    /** Number of message characters converted so far. */
+    private long _converted;
+
     /** Alphabet used in this machine. */
     private Alphabet _alphabet;
 
@@ -231,6 +381,9 @@ public final class Main {
     /** Source of machine configuration. */
     private Scanner _config;
 
+    /** Contents of the configuration file, if given by name. */
+    private byte[] _configText;
+
     /** File for encoded/decoded messages. */
     private PrintStream _output;
 
@@ -0,0 +1,351 @@
+package enigma;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/** Counts and timings for the stages of processing messages, reported
+ *  as JDK Flight Recorder events and through the MetricsMBean.
+ *  Metrics are collected only if the system property enigma.metrics is
+ *  true.  Otherwise ENABLED is a false constant, and every method here
+ *  returns at once, so that the JIT removes the calls altogether.
+ *  @author Haoqing Xuan
+ */
+final class Metrics implements MetricsMBean {
+
+    /** True iff metrics are being collected. */
+    static final boolean ENABLED = Boolean.getBoolean("enigma.metrics");
+
+    /** The stages whose time is measured. */
+    enum Stage {
+        /** Reading a configuration. */
+        CONFIG,
+        /** Applying a settings line. */
+        SETUP,
+        /** Converting a message. */
+        CONVERT,
+        /** Formatting and printing a converted message. */
+        OUTPUT
+    }
+
+    /** The caches whose lookups are counted. */
+    enum Cache {
+        /** A Machine's compiled engine, reused while its key is unchanged. */
+        ENGINE,
+        /** StateTables loaded by this process. */
+        TABLES,
+        /** Configurations in the Registry. */
+        REGISTRY,
+        /** Converted messages in a ResultCache. */
+        RESULTS
+    }
+
+    /** Return a start time to pass to end, or 0 if not ENABLED. */
+    static long start() {
+        return ENABLED ? System.nanoTime() : 0;
+    }
+
+    /** Record that STAGE, which began at START (from start()), has
+     *  ended, having processed CHARS characters. */
+    static void end(Stage stage, long start, int chars) {
+        if (!ENABLED) {
+            return;
+        }
+        long nanos = System.nanoTime() - start;
+        INSTANCE.count(stage, nanos, chars);
+        StageEvent event = new StageEvent();
+        if (event.isEnabled()) {
+            event.stage = stage.name();
+            event.nanos = nanos;
+            event.characters = chars;
+            event.commit();
+        }
+    }
+
+    /** Return the number of bytes allocated so far by the current
+     *  thread, or -1 if that is unknown or not ENABLED. */
+    static long allocated() {
+        if (!ENABLED || THREADS == null) {
+            return -1;
+        }
+        return THREADS.getThreadAllocatedBytes(
+            Thread.currentThread().getId());
+    }
+
+    /** Record that processing one message allocated the bytes since
+     *  START, a value of allocated(). */
+    static void allocatedSince(long start) {
+        if (!ENABLED || start < 0) {
+            return;
+        }
+        long bytes = allocated() - start;
+        INSTANCE._allocated.add(bytes);
+        INSTANCE._allocatedMessages.increment();
+        MessageEvent event = new MessageEvent();
+        if (event.isEnabled()) {
+            event.allocated = bytes;
+            event.commit();
+        }
+    }
+
+    /** Record a lookup in CACHE that hit iff HIT. */
+    static void cache(Cache cache, boolean hit) {
+        if (!ENABLED) {
+            return;
+        }
+        INSTANCE.count(cache, hit);
+        CacheEvent event = new CacheEvent();
+        if (event.isEnabled()) {
+            event.cache = cache.name();
+            event.hit = hit;
+            event.commit();
+        }
+    }
+
+    /** Count STAGE, which took NANOS nanoseconds to process CHARS
+     *  characters, whether or not metrics are ENABLED. */
+    void count(Stage stage, long nanos, int chars) {
+        _nanos[stage.ordinal()].add(nanos);
+        if (stage == Stage.CONVERT) {
+            _characters.add(chars);
+            _messages.increment();
+        } else if (stage == Stage.SETUP) {
+            _setups.increment();
+        }
+    }
+
+    /** Count a lookup in CACHE that hit iff HIT, whether or not metrics
+     *  are ENABLED. */
+    void count(Cache cache, boolean hit) {
+        if (hit) {
+            _hits[cache.ordinal()].increment();
+        } else {
+            _misses[cache.ordinal()].increment();
+        }
+    }
+
+    /** Return the number of lookups in CACHE that found an entry. */
+    long hits(Cache cache) {
+        return _hits[cache.ordinal()].sum();
+    }
+
+    /** Return the number of lookups in CACHE that did not. */
+    long misses(Cache cache) {
+        return _misses[cache.ordinal()].sum();
+    }
+
+    /** Return hits(CACHE) as a fraction of all lookups in CACHE, or 0 if
+     *  there have been none. */
+    double hitRate(Cache cache) {
+        long hits = hits(cache);
+        long total = hits + misses(cache);
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /** Return the metrics of this process. */
+    static Metrics get() {
+        return INSTANCE;
+    }
+
+    @Override
+    public long getCharacters() {
+        return _characters.sum();
+    }
+
+    @Override
+    public long getMessages() {
+        return _messages.sum();
+    }
+
+    @Override
+    public long getSetups() {
+        return _setups.sum();
+    }
+
+    @Override
+    public long getConfigNanos() {
+        return _nanos[Stage.CONFIG.ordinal()].sum();
+    }
+
+    @Override
+    public long getSetupNanos() {
+        return _nanos[Stage.SETUP.ordinal()].sum();
+    }
+
+    @Override
+    public long getConvertNanos() {
+        return _nanos[Stage.CONVERT.ordinal()].sum();
+    }
+
+    @Override
+    public long getOutputNanos() {
+        return _nanos[Stage.OUTPUT.ordinal()].sum();
+    }
+
+    @Override
+    public double getCharactersPerSecond() {
+        long nanos = getConvertNanos();
+        return nanos == 0 ? 0 : getCharacters() * 1e9 / nanos;
+    }
+
+    @Override
+    public double getEngineHitRate() {
+        return hitRate(Cache.ENGINE);
+    }
+
+    @Override
+    public double getTablesHitRate() {
+        return hitRate(Cache.TABLES);
+    }
+
+    @Override
+    public double getRegistryHitRate() {
+        return hitRate(Cache.REGISTRY);
+    }
+
+    @Override
+    public double getResultsHitRate() {
+        return hitRate(Cache.RESULTS);
+    }
+
+    @Override
+    public double getAllocatedBytesPerMessage() {
+        long messages = _allocatedMessages.sum();
+        return messages == 0 ? -1 : (double) _allocated.sum() / messages;
+    }
+
+    @Override
+    public void reset() {
+        for (LongAdder nanos : _nanos) {
+            nanos.reset();
+        }
+        _characters.reset();
+        _messages.reset();
+        _setups.reset();
+        for (Cache cache : Cache.values()) {
+            _hits[cache.ordinal()].reset();
+            _misses[cache.ordinal()].reset();
+        }
+        _allocated.reset();
+        _allocatedMessages.reset();
+    }
+
+    /** A Flight Recorder event for one stage of processing. */
+    @Name("enigma.Stage")
+    @Label("Enigma Stage")
+    @Category("Enigma")
+    @Description("One stage of processing input")
+    static class StageEvent extends Event {
+        /** The stage's name. */
+        @Label("Stage")
+        String stage;
+        /** How long the stage took. */
+        @Label("Duration")
+        @Timespan
+        long nanos;
+        /** Number of characters processed. */
+        @Label("Characters")
+        int characters;
+    }
+
+    /** A Flight Recorder event for the allocation of one message. */
+    @Name("enigma.Message")
+    @Label("Enigma Message")
+    @Category("Enigma")
+    @Description("Bytes allocated while converting and printing a message")
+    static class MessageEvent extends Event {
+        /** Bytes allocated. */
+        @Label("Allocated")
+        @DataAmount
+        long allocated;
+    }
+
+    /** A Flight Recorder event for one cache lookup. */
+    @Name("enigma.Cache")
+    @Label("Enigma Cache Lookup")
+    @Category("Enigma")
+    static class CacheEvent extends Event {
+        /** The cache's name. */
+        @Label("Cache")
+        String cache;
+        /** True iff the lookup found an entry. */
+        @Label("Hit")
+        boolean hit;
+    }
+
+    /** The only Metrics. */
+    private Metrics() {
+        _nanos = new LongAdder[Stage.values().length];
+        for (int i = 0; i < _nanos.length; i++) {
+            _nanos[i] = new LongAdder();
+        }
+        _hits = new LongAdder[Cache.values().length];
+        _misses = new LongAdder[Cache.values().length];
+        for (int i = 0; i < _hits.length; i++) {
+            _hits[i] = new LongAdder();
+            _misses[i] = new LongAdder();
+        }
+    }
+
+    /** Return the thread bean, if it can report allocation. */
+    private static com.sun.management.ThreadMXBean threads() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) bean;
+            if (threads.isThreadAllocatedMemorySupported()) {
+                threads.setThreadAllocatedMemoryEnabled(true);
+                return threads;
+            }
+        }
+        return null;
+    }
+
+    /** The only Metrics. */
+    private static final Metrics INSTANCE = new Metrics();
+
+    /** Source of per-thread allocation counts, or null. */
+    private static final com.sun.management.ThreadMXBean THREADS =
+        ENABLED ? threads() : null;
+
+    static {
+        if (ENABLED) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    INSTANCE, new ObjectName("enigma:type=Metrics"));
+            } catch (JMException excp) {
+                System.err.printf("Warning: metrics MBean not registered:"
+                                  + " %s%n", excp.getMessage());
+            }
+        }
+    }
+
+    /** Nanoseconds spent in each Stage, by ordinal. */
+    private final LongAdder[] _nanos;
+    /** Characters converted. */
+    private final LongAdder _characters = new LongAdder();
+    /** Messages converted. */
+    private final LongAdder _messages = new LongAdder();
+    /** Settings lines applied. */
+    private final LongAdder _setups = new LongAdder();
+    /** Lookups that hit in each Cache, by ordinal. */
+    private final LongAdder[] _hits;
+    /** Lookups that missed in each Cache, by ordinal. */
+    private final LongAdder[] _misses;
+    /** Bytes allocated by measured messages. */
+    private final LongAdder _allocated = new LongAdder();
+    /** Messages whose allocation was measured. */
+    private final LongAdder _allocatedMessages = new LongAdder();
+}
@@ -0,0 +1,55 @@
+package enigma;
+
+/** The management interface through which Metrics are read, for
+ *  example with jconsole, as the MBean named "enigma:type=Metrics".
+ *  @author Haoqing Xuan
+ */
+public interface MetricsMBean {
+
+    /** Return the number of message characters converted. */
+    long getCharacters();
+
+    /** Return the number of messages converted. */
+    long getMessages();
+
+    /** Return the number of settings lines applied. */
+    long getSetups();
+
+    /** Return the total nanoseconds spent reading configurations. */
+    long getConfigNanos();
+
+    /** Return the total nanoseconds spent applying settings lines. */
+    long getSetupNanos();
+
+    /** Return the total nanoseconds spent converting messages. */
+    long getConvertNanos();
+
+    /** Return the total nanoseconds spent formatting output. */
+    long getOutputNanos();
+
+    /** Return the characters converted per second of conversion. */
+    double getCharactersPerSecond();
+
+    /** Return the fraction of conversions that reused a Machine's
+     *  compiled engine. */
+    double getEngineHitRate();
+
+    /** Return the fraction of StateTable lookups that found a table
+     *  already loaded. */
+    double getTablesHitRate();
+
+    /** Return the fraction of Registry lookups that found the
+     *  configuration already read. */
+    double getRegistryHitRate();
+
+    /** Return the fraction of ResultCache lookups that found the
+     *  message already converted. */
+    double getResultsHitRate();
+
+    /** Return the mean number of bytes allocated while converting and
+     *  printing a message, or -1 if the JVM cannot tell. */
+    double getAllocatedBytesPerMessage();
+
+    /** Set all counts and times to 0. */
+    void reset();
+}
@@ -10,6 +10,8 @@ import static enigma.EnigmaException.*;
 class MovingRotor extends Rotor {
     /** Hashset variable to track info of notches.*/
     private HashSet<Integer> _notches;
+    /** The notch characters I was created with. */
+    private final String _notchChars;
     /** A rotor named NAME whose permutation in its default setting is
      *  PERM, and whose notches are at the positions indicated in NOTCHES.
      *  The Rotor is initally in its 0 setting (first character of its
@@ -17,6 +19,7 @@ class MovingRotor extends Rotor {
      */
     MovingRotor(String name, Permutation perm, String notches) {
         super(name, perm);
+        _notchChars = notches;
         _notches = new HashSet<Integer>();
         if (notches.length() < 0) {
             throw error("Moving rotor needs to have notch");
@@ -32,6 +35,11 @@ class MovingRotor extends Rotor {
         return _notches.contains(permutation().wrap(_setting));
     }
 
+    @Override
+    boolean notchAt(int posn) {
+        return _notches.contains(posn);
+    }
+
     @Override
     void advance() {
         set(setting() + 1);
@@ -43,6 +51,11 @@ class MovingRotor extends Rotor {
         return true;
     }
 
+    @Override
+    Rotor copy() {
+        return new MovingRotor(name(), basePermutation(), _notchChars);
+    }
+
     @Override
     public String toString() {
         return "MovingRotor " + name();
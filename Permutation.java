@@ -1,5 +1,9 @@
 package enigma;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
 import static enigma.EnigmaException.*;
 
 /** Represents a permutation of a range of integers starting at 0 corresponding
@@ -12,14 +16,16 @@ import static enigma.EnigmaException.*;
 
 
 class Permutation {
-    /** String[] variable to store cycles.*/
+    /** String[] variable to store cycles, or null until derangement()
+     *  needs them for a permutation made from a table.*/
     private String[] _cycles;
 
     /** Set this Permutation to that specified by CYCLES, a string in the
      *  form "(cccc) (cc) ..." where the c's are characters in ALPHABET, which
      *  is interpreted as a permutation in cycle notation.  Characters in the
      *  alphabet that are not included in any cycle map to themselves.
-     *  Whitespace is ignored. */
+     *  Whitespace is ignored.  In the byte alphabet, the c's are written
+     *  as in Alphabet.decode, as in "(00ff) (414243)". */
     Permutation(String cycles, Alphabet alphabet) {
         _alphabet = alphabet;
         String newCycle = cycles;
@@ -27,6 +33,89 @@ class Permutation {
         newCycle = newCycle.replace(" ", "");
         newCycle = newCycle.replace(")", ",");
         _cycles = newCycle.split(",");
+        for (int i = 0; i < _cycles.length; i++) {
+            _cycles[i] = alphabet.decode(_cycles[i]);
+        }
+        compile();
+    }
+
+    /** The permutation of ALPHABET that maps index I to FORWARD[I], for
+     *  0 <= I < ALPHABET.size().  FORWARD must contain each index once. */
+    Permutation(int[] forward, Alphabet alphabet) {
+        _alphabet = alphabet;
+        int n = size();
+        if (forward.length != n) {
+            throw error("permutation has the wrong size");
+        }
+        _forward = forward.clone();
+        _backward = new int[n];
+        Arrays.fill(_backward, -1);
+        for (int i = 0; i < n; i++) {
+            if (_forward[i] < 0 || _forward[i] >= n
+                || _backward[_forward[i]] >= 0) {
+                throw error("not a permutation");
+            }
+            _backward[_forward[i]] = i;
+        }
+    }
+
+    /** The permutation of ALPHABET given by the tables FORWARD and
+     *  BACKWARD, which must be inverses of each other.  They are used,
+     *  not copied. */
+    private Permutation(int[] forward, int[] backward, Alphabet alphabet) {
+        _alphabet = alphabet;
+        _forward = forward;
+        _backward = backward;
+    }
+
+    /** Return my cycles, including those of length 1, each as a string
+     *  of characters of my alphabet. */
+    private String[] cycleStrings() {
+        int n = size();
+        boolean[] seen = new boolean[n];
+        ArrayList<String> cycles = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            StringBuilder cycle = new StringBuilder();
+            for (int j = i; !seen[j]; j = _forward[j]) {
+                seen[j] = true;
+                cycle.append(_alphabet.toChar(j));
+            }
+            if (cycle.length() > 0) {
+                cycles.add(cycle.toString());
+            }
+        }
+        return cycles.toArray(new String[0]);
+    }
+
+    /** Fill in _forward and _backward from _cycles, so that permute and
+     *  invert are single array lookups. */
+    private void compile() {
+        int n = size();
+        _forward = new int[n];
+        _backward = new int[n];
+        for (int i = 0; i < n; i++) {
+            _forward[i] = i;
+            _backward[i] = i;
+        }
+        boolean[] seen = new boolean[n];
+        for (String cycle : _cycles) {
+            for (int j = 0; j < cycle.length(); j++) {
+                int from = _alphabet.toInt(cycle.charAt(j));
+                int to = _alphabet.toInt(
+                        cycle.charAt((j + 1) % cycle.length()));
+                if (from < 0) {
+                    throw error("'%c' is not in the alphabet",
+                                cycle.charAt(j));
+                }
+                if (seen[from]) {
+                    throw error("'%c' appears twice in a permutation",
+                                cycle.charAt(j));
+                }
+                seen[from] = true;
+                _forward[from] = to;
+                _backward[to] = from;
+            }
+        }
     }
 
     /** Add the cycle c0->c1->...->cm->c0 to the permutation, where CYCLE is
@@ -46,6 +135,9 @@ class Permutation {
 
     /** Return the value of P modulo the size of this permutation. */
     final int wrap(int p) {
+        if (p >= 0 && p < _forward.length) {
+            return p;
+        }
         int r = p % size();
         if (r < 0) {
             r += size();
@@ -60,46 +152,19 @@ class Permutation {
 
     /** Return the result of applying this permutation to P modulo the
      *  alphabet size.
-     * locating the character in the cycles, after finding the character,
-     * find the character that has index + 1 of the
-     * character and output its index in the alphabet. */
-
+     * the successor of each character in its cycle is looked up in
+     * _forward, which compile() filled in from the cycles. */
     int permute(int p) {
-        char character = _alphabet.toChar(wrap(p));
-        char next = ' ';
-        for (int i = 0; i < _cycles.length; i++) {
-            for (int j = 0; j < _cycles[i].length(); j++) {
-                if (_cycles[i].charAt(j) == character) {
-                    next = _cycles[i].charAt((j + 1) % _cycles[i].length());
-                    return _alphabet.toInt(next);
-                }
-            }
-        }
-
-        return p;
+        return _forward[wrap(p)];
     }
 
 
     /** Return the result of applying the inverse of this permutation
      *  to  C modulo the alphabet size.
-     * locating the character in the cycles,
-     * after finding the character,
-     * find the character that has index - 1 of the
-     * character and output its index in the alphabet. */
+     * the predecessor of each character in its cycle is looked up in
+     * _backward. */
     int invert(int c) {
-        char character = _alphabet.toChar(wrap(c));
-        char previous = '0';
-        for (int i = 0; i < _cycles.length; i++) {
-            for (int j = 0; j < _cycles[i].length(); j++) {
-                if (_cycles[i].charAt(j) == character) {
-                    previous = _cycles[i].charAt(
-                            Math.floorMod((j - 1), _cycles[i].length()));
-                    return _alphabet.toInt(previous);
-                }
-            }
-        }
-        return c;
-
+        return _backward[wrap(c)];
     }
 
 
@@ -108,12 +173,18 @@ class Permutation {
      *  in ALPHABET, and converting the result to a character of ALPHABET. */
     char permute(char p) {
         int charIndex = _alphabet.toInt(p);
+        if (charIndex < 0) {
+            throw error("'%c' is not in the alphabet", p);
+        }
         return _alphabet.toChar(permute(charIndex));
     }
 
     /** Return the result of applying the inverse of this permutation to C. */
     char invert(char c) {
         int charIndex = _alphabet.toInt(c);
+        if (charIndex < 0) {
+            throw error("'%c' is not in the alphabet", c);
+        }
         return _alphabet.toChar(invert(charIndex));
     }
 
@@ -129,6 +200,9 @@ class Permutation {
      * length of 1 means that the character maps to itself. */
 
     boolean derangement() {
+        if (_cycles == null) {
+            _cycles = cycleStrings();
+        }
         for (int i = 0; i < _cycles.length; i++) {
             if (_cycles[i].length() <= 1) {
                 return false;
@@ -137,6 +211,166 @@ class Permutation {
         return true;
     }
 
+    /** Return the permutation that applies me and then OTHER, whose
+     *  alphabet must be mine. */
+    Permutation compose(Permutation other) {
+        if (other.size() != size()) {
+            throw error("permutations have different alphabets");
+        }
+        int n = size();
+        int[] forward = new int[n];
+        int[] backward = new int[n];
+        for (int i = 0; i < n; i++) {
+            forward[i] = other._forward[_forward[i]];
+            backward[forward[i]] = i;
+        }
+        return new Permutation(forward, backward, _alphabet);
+    }
+
+    /** Return my inverse.  It is made once and kept. */
+    Permutation inverse() {
+        Permutation result = _inverse;
+        if (result == null) {
+            result = new Permutation(_backward, _forward, _alphabet);
+            result._inverse = this;
+            _inverse = result;
+        }
+        return result;
+    }
+
+    /** Return me applied K times, where K may be negative.  Each cycle
+     *  is rotated by K, so this takes time proportional to size()
+     *  whatever K is. */
+    Permutation power(int k) {
+        int n = size();
+        int[] forward = new int[n];
+        int[] backward = new int[n];
+        for (int[] cycle : cycleDecomposition()) {
+            int len = cycle.length;
+            int shift = ((k % len) + len) % len;
+            for (int i = 0; i < len; i++) {
+                int to = cycle[(i + shift) % len];
+                forward[cycle[i]] = to;
+                backward[to] = cycle[i];
+            }
+        }
+        return new Permutation(forward, backward, _alphabet);
+    }
+
+    /** Return my conjugate by a shift of K: the permutation taking X to
+     *  my value at X + K, less K, all modulo size().  This is a rotor's
+     *  wiring seen at setting K.  While keepsConjugates(), each
+     *  conjugate is made once and kept, so a rotor visiting every
+     *  setting costs size() squared entries in all. */
+    Permutation conjugateByShift(int k) {
+        int n = size();
+        k = wrap(k);
+        if (k == 0) {
+            return this;
+        }
+        AtomicReferenceArray<Permutation> cache = _conjugates;
+        if (cache == null && keepsConjugates()) {
+            cache = _conjugates;
+        }
+        Permutation result = cache == null ? null : cache.get(k);
+        if (result != null) {
+            return result;
+        }
+        int[] forward = new int[n];
+        int[] backward = new int[n];
+        for (int x = 0; x < n; x++) {
+            int y = _forward[x + k < n ? x + k : x + k - n] - k;
+            forward[x] = y < 0 ? y + n : y;
+            backward[forward[x]] = x;
+        }
+        result = new Permutation(forward, backward, _alphabet);
+        if (cache != null) {
+            cache.compareAndSet(k, null, result);
+            result = cache.get(k);
+        }
+        return result;
+    }
+
+    /** Return true iff conjugateByShift keeps the conjugates it makes.
+     *  They are kept only for alphabets of at most CONJUGATE_LIMIT
+     *  characters, and only if the Budget grants room for all of them
+     *  the first time they are wanted.  If it refuses, or later evicts
+     *  them, they are not kept again, and rotors with my wiring shift
+     *  it arithmetically instead. */
+    boolean keepsConjugates() {
+        if (_conjugates != null) {
+            return true;
+        } else if (_conjugatesDropped || size() > CONJUGATE_LIMIT) {
+            return false;
+        }
+        long n = size();
+        Budget.Charge charge =
+            Budget.reserve(CONJUGATES, this,
+                           n * (2 * Integer.BYTES * n + PERMUTATION_BYTES),
+                           Budget.Space.HEAP, Budget.estimate(n * n));
+        synchronized (this) {
+            if (_conjugates == null && !_conjugatesDropped) {
+                if (charge == null) {
+                    _conjugatesDropped = true;
+                } else {
+                    _conjugates = new AtomicReferenceArray<>(size());
+                }
+            }
+            return _conjugates != null;
+        }
+    }
+
+    /** Stop keeping my conjugates, for good. */
+    private void dropConjugates() {
+        _conjugatesDropped = true;
+        _conjugates = null;
+    }
+
+    /** Return my cycles, including those of length 1, each as the
+     *  indices it visits starting from its smallest, in increasing order
+     *  of their smallest indices. */
+    int[][] cycleDecomposition() {
+        int n = size();
+        boolean[] seen = new boolean[n];
+        ArrayList<int[]> cycles = new ArrayList<>();
+        int[] cycle = new int[n];
+        for (int i = 0; i < n; i++) {
+            int len = 0;
+            for (int j = i; !seen[j]; j = _forward[j]) {
+                seen[j] = true;
+                cycle[len] = j;
+                len += 1;
+            }
+            if (len > 0) {
+                cycles.add(Arrays.copyOf(cycle, len));
+            }
+        }
+        return cycles.toArray(new int[0][]);
+    }
+
+    /** Largest alphabet for which conjugateByShift keeps its results. */
+    static final int CONJUGATE_LIMIT = 1024;
+
+    /** Estimated bytes of a permutation apart from its tables. */
+    private static final int PERMUTATION_BYTES = 64;
+
+    /** The Budget's owner of kept conjugates, keyed by the permutation
+     *  whose conjugates they are. */
+    private static final Budget.Owner CONJUGATES =
+        key -> ((Permutation) key).dropConjugates();
+
     /** Alphabet of this permutation. */
     private Alphabet _alphabet;
+    /** My inverse, once inverse() has made it. */
+    private volatile Permutation _inverse;
+    /** _conjugates[k] is my conjugate by a shift of K, once made, or
+     *  null if they are not kept. */
+    private volatile AtomicReferenceArray<Permutation> _conjugates;
+    /** True iff my conjugates have been refused or evicted by the
+     *  Budget. */
+    private volatile boolean _conjugatesDropped;
+    /** _forward[i] is the index to which index I is permuted. */
+    private int[] _forward;
+    /** _backward[i] is the index that is permuted to index I. */
+    private int[] _backward;
 }
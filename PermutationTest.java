@@ -131,6 +131,51 @@ public class PermutationTest {
         assertTrue(c.derangement());
 
     }
+    @Test
+    public void testCompose() {
+        Alphabet a = new Alphabet("ABCDE");
+        Permutation p = new Permutation("(ABC)", a);
+        Permutation q = new Permutation("(AD) (BE)", a);
+        Permutation pq = p.compose(q);
+        assertEquals('E', pq.permute('A'));
+        assertEquals('C', pq.permute('B'));
+        assertEquals('D', pq.permute('C'));
+        assertEquals('A', pq.permute('D'));
+        assertEquals('B', pq.permute('E'));
+        assertEquals('A', pq.invert('E'));
+    }
+    @Test
+    public void testCycleDecomposition() {
+        Permutation p = new Permutation("(AOQNGIH) (X)",
+                new Alphabet("AGHINOQX"));
+        int[][] cycles = p.cycleDecomposition();
+        assertEquals(2, cycles.length);
+        assertArrayEquals(new int[] {0, 5, 6, 4, 1, 3, 2}, cycles[0]);
+        assertArrayEquals(new int[] {7}, cycles[1]);
+    }
+    @Test
+    public void testPowerAndInverse() {
+        Alphabet a = new Alphabet("ABCDE");
+        Permutation p = new Permutation("(ABC) (DE)", a);
+        assertEquals('C', p.power(2).permute('A'));
+        assertEquals('D', p.power(2).permute('D'));
+        assertEquals('A', p.power(6).permute('A'));
+        assertEquals('C', p.power(-1).permute('A'));
+        assertEquals('C', p.inverse().permute('A'));
+        assertSame(p, p.inverse().inverse());
+    }
+    @Test
+    public void testConjugateByShift() {
+        Alphabet a = new Alphabet("ABCDE");
+        Permutation p = new Permutation("(ABC) (DE)", a);
+        Permutation c = p.conjugateByShift(1);
+        for (int x = 0; x < 5; x++) {
+            assertEquals(p.wrap(p.permute(x + 1) - 1), c.permute(x));
+            assertEquals(x, c.invert(c.permute(x)));
+        }
+        assertSame(c, p.conjugateByShift(6));
+        assertSame(p, p.conjugateByShift(0));
+    }
     @Test(expected = EnigmaException.class)
     public void testNotInAlphabet() {
         Permutation p = new Permutation("(AOQNGIH) (X)",
@@ -25,6 +25,11 @@ class Reflector extends FixedRotor {
         }
     }
 
+    @Override
+    Rotor copy() {
+        return new Reflector(name(), basePermutation());
+    }
+
     @Override
     public String toString() {
         return "Reflector " + name();
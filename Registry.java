@@ -0,0 +1,203 @@
+package enigma;
+
+import java.io.IOException;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.Map;
+import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static enigma.EnigmaException.*;
+
+/** A process-wide registry of configured machines, keyed by the SHA-256
+ *  hash of the configuration text, so that a configuration submitted
+ *  many times is read only once.  Looking up a configuration already
+ *  present takes no lock.  When several threads ask for a new
+ *  configuration at once, one reads it and the rest wait for its
+ *  result.  The registry holds at most the number of bytes given by the
+ *  system property enigma.registry.max (as estimated by
+ *  Machine.footprint()); beyond that, the least recently used
+ *  configurations are dropped.  Machines are also charged to the
+ *  Budget, and one it has no room for is returned but not kept.
+ *  @author Haoqing Xuan
+ */
+final class Registry {
+
+    /** Not instantiable. */
+    private Registry() {
+    }
+
+    /** Return a new machine configured by the file named NAME, as
+     *  machine(byte[]) does. */
+    static Machine machine(String name) {
+        try {
+            return machine(Files.readAllBytes(Paths.get(name)));
+        } catch (IOException excp) {
+            throw error("could not open %s", name);
+        }
+    }
+
+    /** Return a new machine configured by the configuration file
+     *  contents CONFIG.  It is a copy() of the registered machine, so
+     *  its rotors and plugboard must be set up. */
+    static Machine machine(byte[] config) {
+        String key = hash(config);
+        Entry entry = ENTRIES.get(key);
+        Metrics.cache(Metrics.Cache.REGISTRY, entry != null);
+        if (entry == null) {
+            Entry fresh = new Entry();
+            entry = ENTRIES.putIfAbsent(key, fresh);
+            if (entry == null) {
+                entry = fresh;
+                build(key, fresh, config);
+            }
+        }
+        entry._used = CLOCK.incrementAndGet();
+        Budget.Charge charge = entry._charge;
+        if (charge != null) {
+            charge.used();
+        }
+        try {
+            return entry._machine.join().copy();
+        } catch (CompletionException excp) {
+            if (excp.getCause() instanceof EnigmaException) {
+                throw (EnigmaException) excp.getCause();
+            }
+            throw excp;
+        }
+    }
+
+    /** Return the number of configurations registered. */
+    static int size() {
+        return ENTRIES.size();
+    }
+
+    /** Return the estimated number of bytes the registry holds. */
+    static long weight() {
+        return WEIGHT.get();
+    }
+
+    /** Drop every registered configuration that has been read. */
+    static void clear() {
+        for (Map.Entry<String, Entry> e : ENTRIES.entrySet()) {
+            if (e.getValue()._machine.isDone()) {
+                remove(e.getKey());
+            }
+        }
+    }
+
+    /** Read CONFIG into ENTRY, registered under KEY, and evict other
+     *  entries if the registry is now over its limit.  If CONFIG is
+     *  invalid, ENTRY is completed with the error and unregistered. */
+    private static void build(String key, Entry entry, byte[] config) {
+        Machine machine;
+        long start = System.nanoTime();
+        try {
+            machine = new Main(new Scanner(new String(
+                                   config, StandardCharsets.UTF_8)),
+                               null, null).machine();
+        } catch (RuntimeException excp) {
+            ENTRIES.remove(key, entry);
+            entry._machine.completeExceptionally(excp);
+            return;
+        }
+        entry._weight = machine.footprint() + config.length;
+        entry._charge = Budget.reserve(OWNER, key, entry._weight,
+                                       Budget.Space.HEAP,
+                                       System.nanoTime() - start);
+        if (entry._charge == null) {
+            ENTRIES.remove(key, entry);
+            entry._machine.complete(machine);
+            return;
+        }
+        WEIGHT.addAndGet(entry._weight);
+        entry._machine.complete(machine);
+        evict(key);
+    }
+
+    /** Drop the least recently used entries other than the one under
+     *  KEEP until the registry is within its limit. */
+    private static void evict(String keep) {
+        long max = Long.getLong("enigma.registry.max", DEFAULT_MAX);
+        while (WEIGHT.get() > max) {
+            String oldest = null;
+            long oldestUse = Long.MAX_VALUE;
+            for (Map.Entry<String, Entry> e : ENTRIES.entrySet()) {
+                Entry entry = e.getValue();
+                if (!e.getKey().equals(keep) && entry._machine.isDone()
+                    && entry._used < oldestUse) {
+                    oldest = e.getKey();
+                    oldestUse = entry._used;
+                }
+            }
+            if (oldest == null) {
+                return;
+            }
+            remove(oldest);
+        }
+    }
+
+    /** Unregister the entry under KEY, if there is one.  Only entries
+     *  whose machine has been read are removed this way, so that their
+     *  weight has been counted. */
+    private static void remove(String key) {
+        Entry entry = ENTRIES.get(key);
+        if (entry != null && entry._machine.isDone()
+            && ENTRIES.remove(key, entry)) {
+            WEIGHT.addAndGet(-entry._weight);
+            entry._charge.release();
+        }
+    }
+
+    /** Return the SHA-256 hash of DATA in hexadecimal. */
+    private static String hash(byte[] data) {
+        try {
+            StringBuilder key = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(data)) {
+                key.append(String.format("%02x", b));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException excp) {
+            throw error("SHA-256 is not available");
+        }
+    }
+
+    /** A registered configuration. */
+    private static class Entry {
+        /** The configured machine, once it has been read. */
+        private final CompletableFuture<Machine> _machine =
+            new CompletableFuture<>();
+        /** Estimated size in bytes, once the machine has been read. */
+        private volatile long _weight;
+        /** Value of CLOCK when last looked up. */
+        private volatile long _used;
+        /** The Budget's charge for the machine, once it has been
+         *  read. */
+        private volatile Budget.Charge _charge;
+    }
+
+    /** Default limit on the registry's size, in bytes. */
+    private static final long DEFAULT_MAX = 1L << 26;
+
+    /** Registered configurations, by hash. */
+    private static final Map<String, Entry> ENTRIES =
+        new ConcurrentHashMap<>();
+
+    /** The Budget's owner of ENTRIES. */
+    private static final Budget.Owner OWNER = key -> remove((String) key);
+
+    /** Sum of the weights of the registered configurations. */
+    private static final AtomicLong WEIGHT = new AtomicLong();
+
+    /** Counts lookups, to order entries by their last use. */
+    private static final AtomicLong CLOCK = new AtomicLong();
+}
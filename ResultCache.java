@@ -0,0 +1,230 @@
+package enigma;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static enigma.EnigmaException.*;
+
+/** A cache of converted messages, addressed by their content: the
+ *  machine's key, which identifies its alphabet, wirings, notches, ring
+ *  settings and plugboard, its rotor settings, its passthrough mode,
+ *  and the message.  Each entry holds the conversion and the rotor settings it
+ *  leaves, so that a machine given a cached result is left exactly as
+ *  converting the message would leave it.  The cache holds at most a
+ *  given number of bytes, estimated from the lengths of the strings it
+ *  holds, and drops its least recently used entries beyond that.  Its
+ *  entries are also charged to the Budget, and one the Budget has no
+ *  room for is not kept.  It may be shared by machines on several
+ *  threads.
+ *  @author Haoqing Xuan
+ */
+final class ResultCache {
+
+    /** An empty cache holding at most BUDGET bytes. */
+    ResultCache(long budget) {
+        if (budget <= 0) {
+            throw error("result cache budget must be positive");
+        }
+        _budget = budget;
+    }
+
+    /** Return the conversion of MSG by MACHINE, as by
+     *  MACHINE.convert(MSG), taking it from here if present and adding
+     *  it otherwise. */
+    String convert(Machine machine, String msg) {
+        int[] start = machine.positions();
+        Key key = new Key(machine.key(), start, machine.passthrough(), msg);
+        Result hit = get(key);
+        Metrics.cache(Metrics.Cache.RESULTS, hit != null);
+        if (hit != null) {
+            hit._charge.used();
+            machine.setPositions(hit._positions);
+            return hit._text;
+        }
+        long time = System.nanoTime();
+        String text = machine.convertMessage(msg);
+        Result result = new Result(text, machine.positions());
+        long weight = key.weight() + result.weight();
+        if (weight <= _budget) {
+            result._charge = Budget.reserve(_owner, key, weight,
+                                            Budget.Space.HEAP,
+                                            System.nanoTime() - time);
+            Key held = result._charge == null ? null
+                : (Key) result._charge.key();
+            if (held != null) {
+                put(held, result, weight);
+            }
+        }
+        return text;
+    }
+
+    /** Return the number of entries. */
+    synchronized int size() {
+        return _entries.size();
+    }
+
+    /** Return the estimated number of bytes held. */
+    synchronized long weight() {
+        return _weight;
+    }
+
+    /** Return the most bytes I may hold. */
+    long budget() {
+        return _budget;
+    }
+
+    /** Drop every entry. */
+    synchronized void clear() {
+        for (Result result : _entries.values()) {
+            result._charge.release();
+        }
+        _entries.clear();
+        _weight = 0;
+    }
+
+    /** Return the result under KEY, or null if there is none. */
+    private synchronized Result get(Key key) {
+        return _entries.get(key);
+    }
+
+    /** Store RESULT, weighing WEIGHT bytes with KEY, under KEY, dropping
+     *  the least recently used entries until I am within my budget.  KEY
+     *  is the instance RESULT's charge holds, and replaces any equal key
+     *  already here, so that the charge lasts as long as the entry. */
+    private synchronized void put(Key key, Result result, long weight) {
+        if (!result._charge.live()) {
+            return;
+        }
+        Result old = _entries.remove(key);
+        _entries.put(key, result);
+        if (old != null) {
+            _weight -= key.weight() + old.weight();
+            if (old._charge != result._charge) {
+                old._charge.release();
+            }
+        }
+        _weight += weight;
+        Iterator<Map.Entry<Key, Result>> oldest =
+            _entries.entrySet().iterator();
+        while (_weight > _budget) {
+            Map.Entry<Key, Result> e = oldest.next();
+            _weight -= e.getKey().weight() + e.getValue().weight();
+            e.getValue()._charge.release();
+            oldest.remove();
+        }
+    }
+
+    /** Drop the entry under KEY, which the Budget has evicted. */
+    private synchronized void evict(Key key) {
+        Result result = _entries.remove(key);
+        if (result != null) {
+            _weight -= key.weight() + result.weight();
+        }
+    }
+
+    /** The identity of a conversion: the machine's key, rotor settings
+     *  and passthrough mode, and the message. */
+    private static final class Key {
+        /** The key for converting MSG by a machine with key MACHINE,
+         *  rotor settings POSITIONS, and passthrough mode PASSTHROUGH. */
+        Key(String machine, int[] positions, boolean passthrough,
+            String msg) {
+            _machine = machine;
+            _positions = positions;
+            _passthrough = passthrough;
+            _msg = msg;
+            long h = passthrough ? 1 : 0;
+            h = mix(h, machine.hashCode());
+            h = mix(h, Arrays.hashCode(positions));
+            h = mix(h, msg.hashCode());
+            _hash = (int) (h ^ (h >>> Integer.SIZE));
+        }
+
+        /** Return the estimated number of bytes I hold. */
+        long weight() {
+            return ENTRY_BYTES + 2L * (_machine.length() + _msg.length())
+                + (long) Integer.BYTES * _positions.length;
+        }
+
+        @Override
+        public int hashCode() {
+            return _hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return _hash == other._hash && _passthrough == other._passthrough
+                && Arrays.equals(_positions, other._positions)
+                && _msg.equals(other._msg) && _machine.equals(other._machine);
+        }
+
+        /** Return H combined with X. */
+        private static long mix(long h, int x) {
+            h = (h ^ x) * MIX;
+            return h ^ (h >>> HALF);
+        }
+
+        /** Multiplier for mixing hashes. */
+        private static final long MIX = 0x9e3779b97f4a7c15L;
+        /** Half the bits of a long. */
+        private static final int HALF = 32;
+
+        /** The machine's key, as by Machine.key(). */
+        private final String _machine;
+        /** The machine's rotor settings before converting. */
+        private final int[] _positions;
+        /** The machine's passthrough mode. */
+        private final boolean _passthrough;
+        /** The message. */
+        private final String _msg;
+        /** My hash code. */
+        private final int _hash;
+    }
+
+    /** The conversion of a message and the rotor settings it leaves. */
+    private static final class Result {
+        /** The result TEXT, leaving the rotors at POSITIONS. */
+        Result(String text, int[] positions) {
+            _text = text;
+            _positions = positions;
+        }
+
+        /** Return the estimated number of bytes I hold apart from the
+         *  entry itself. */
+        long weight() {
+            return 2L * _text.length()
+                + (long) Integer.BYTES * _positions.length;
+        }
+
+        /** The conversion. */
+        private final String _text;
+        /** Rotor settings after converting. */
+        private final int[] _positions;
+        /** The Budget's charge for me. */
+        private Budget.Charge _charge;
+    }
+
+    /** Estimated bytes of an entry apart from its strings and
+     *  arrays. */
+    private static final int ENTRY_BYTES = 96;
+    /** Initial capacity of the table of entries. */
+    private static final int INITIAL_CAPACITY = 16;
+    /** Load factor of the table of entries. */
+    private static final float LOAD_FACTOR = 0.75f;
+
+    /** The most bytes I may hold. */
+    private final long _budget;
+    /** My owner of my entries in the Budget. */
+    private final Budget.Owner _owner = key -> evict((Key) key);
+    /** Estimated bytes held. */
+    private long _weight;
+    /** The entries, least recently used first. */
+    private final LinkedHashMap<Key, Result> _entries =
+        new LinkedHashMap<>(INITIAL_CAPACITY, LOAD_FACTOR, true);
+}
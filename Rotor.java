@@ -12,7 +12,9 @@ class Rotor {
     Rotor(String name, Permutation perm) {
         _name = name;
         _permutation = perm;
+        _basePermutation = perm;
         _setting = 0;
+        shift();
     }
 
     /** Return my name. */
@@ -25,11 +27,49 @@ class Rotor {
         return _permutation.alphabet();
     }
 
-    /** Return my permutation. */
+    /** Return my permutation at setting 0, with my ring setting folded
+     *  in. */
     Permutation permutation() {
         return _permutation;
     }
 
+    /** Return the permutation I was created with, which is my
+     *  permutation() at ring setting 0. */
+    Permutation basePermutation() {
+        return _basePermutation;
+    }
+
+    /** Return my ring setting. */
+    int ring() {
+        return _ring;
+    }
+
+    /** Set my ring setting to RING.  Turning the ring by RING positions
+     *  against the wiring is the same as conjugating the wiring by a
+     *  shift of -RING, so the shifted wiring is taken once here from
+     *  conjugateByShift and convertForward and convertBackward are
+     *  unchanged.  My notches are on the ring, so they stay at the same
+     *  settings. */
+    void setRing(int ring) {
+        ring = _basePermutation.wrap(ring);
+        if (ring == _ring) {
+            return;
+        }
+        _ring = ring;
+        _permutation = _basePermutation.conjugateByShift(-ring);
+        shift();
+    }
+
+    /** Set _shifted to my permutation at my current setting, if the
+     *  conjugates of my base permutation are kept.  Conjugating by a
+     *  shift of -RING and then by one of SETTING is conjugating by
+     *  SETTING - RING, so the conjugate is taken from my base
+     *  permutation, whose conjugates serve every ring setting. */
+    private void shift() {
+        _shifted = _basePermutation.keepsConjugates()
+            ? _basePermutation.conjugateByShift(_setting - _ring) : null;
+    }
+
     /** Return the size of my alphabet. */
     int size() {
         return _permutation.size();
@@ -53,16 +93,25 @@ class Rotor {
     /** Set setting() to POSN.  */
     void set(int posn) {
         _setting = permutation().wrap(posn);
+        shift();
     }
 
     /** Set setting() to character CPOSN. */
     void set(char cposn) {
         _setting = permutation().alphabet().toInt(cposn);
+        if (_setting >= 0) {
+            shift();
+        }
     }
 
     /** Return the conversion of P (an integer in the range 0..size()-1)
-     *  according to my permutation. */
+     *  according to my permutation.  My permutation at my current
+     *  setting is a conjugate of my permutation() by a shift, which is
+     *  looked up where it is kept. */
     int convertForward(int p) {
+        if (_shifted != null) {
+            return _shifted.permute(p);
+        }
         int fromPermutation = permutation().wrap(p + _setting);
         int toPermutation = _permutation.permute(fromPermutation);
         int conversion = _permutation.wrap(toPermutation - _setting);
@@ -72,8 +121,9 @@ class Rotor {
     /** Return the conversion of E (an integer in the range 0..size()-1)
      *  according to the inverse of my permutation. */
     int convertBackward(int e) {
-
-
+        if (_shifted != null) {
+            return _shifted.invert(e);
+        }
         int fromPermutation = permutation().wrap(e + _setting);
         int toPermutation = _permutation.invert(fromPermutation);
         int conversion = _permutation.wrap(toPermutation - _setting);
@@ -86,10 +136,21 @@ class Rotor {
         return false;
     }
 
+    /** Returns true iff I would be at a notch at setting POSN. */
+    boolean notchAt(int posn) {
+        return false;
+    }
+
     /** Advance me one position, if possible. By default, does nothing. */
     void advance() {
     }
 
+    /** Return a new rotor with my name and base permutation, at its 0
+     *  setting and ring setting.  The permutation is shared, not copied. */
+    Rotor copy() {
+        return new Rotor(_name, _basePermutation);
+    }
+
     @Override
     public String toString() {
         return "Rotor " + _name;
@@ -100,4 +161,14 @@ class Rotor {
 
     /** The permutation implemented by this rotor in its 0 position. */
     private Permutation _permutation;
+
+    /** My permutation at ring setting 0. */
+    private final Permutation _basePermutation;
+
+    /** My ring setting. */
+    private int _ring;
+
+    /** My permutation at my current setting, or null if its conjugates
+     *  are not kept. */
+    private Permutation _shifted;
 }
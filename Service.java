@@ -0,0 +1,268 @@
+package enigma;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static enigma.EnigmaException.*;
+
+/** An interactive service converting single keystrokes.  Each client
+ *  connection is a session with its own machine.  The client sends a
+ *  settings line, as for Main, starting with "*" and ending with a
+ *  newline, and the service answers "OK" or "ERR" and a message on a
+ *  line of its own.  Every other character the client sends, in UTF-8,
+ *  is answered at once with its conversion, as by Machine.convert(int),
+ *  or with itself if it is not in the alphabet.  Converting a keystroke
+ *  allocates nothing, and the time from reading it to writing its
+ *  answer is recorded in a Histogram.
+ *  @author Haoqing Xuan
+ */
+final class Service {
+
+    /** Serve sessions as specified by ARGS: options, then the name of a
+     *  configuration file.  The options are
+     *      --port=N    port to listen on (default 7043)
+     *      --report=S  seconds between latency reports on the standard
+     *                  output (default 10; 0 for none)
+     *  Runs until killed.  Exits with code 1 if it cannot start. */
+    public static void main(String... args) {
+        try {
+            int port = DEFAULT_PORT;
+            int report = DEFAULT_REPORT;
+            int first;
+            for (first = 0; first < args.length
+                     && args[first].startsWith("--"); first += 1) {
+                String opt = args[first];
+                if (opt.startsWith("--port=")) {
+                    port = number(opt);
+                } else if (opt.startsWith("--report=")) {
+                    report = number(opt);
+                } else {
+                    throw error("unknown option %s", opt);
+                }
+            }
+            if (args.length - first != 1) {
+                throw error("usage: Service [--port=N] [--report=S]"
+                            + " CONFIG");
+            }
+            byte[] config;
+            try {
+                config = Files.readAllBytes(Paths.get(args[first]));
+            } catch (IOException excp) {
+                throw error("could not open %s", args[first]);
+            }
+            Service service = new Service(config);
+            if (report > 0) {
+                service.report(System.out, report);
+            }
+            service.serve(new ServerSocket(port));
+        } catch (IOException excp) {
+            System.err.printf("Error: %s%n", excp.getMessage());
+        } catch (EnigmaException excp) {
+            System.err.printf("Error: %s%n", excp.getMessage());
+        }
+        System.exit(1);
+    }
+
+    /** Return the value of the numeric option OPT. */
+    private static int number(String opt) {
+        try {
+            return Integer.parseInt(opt.substring(opt.indexOf('=') + 1));
+        } catch (NumberFormatException excp) {
+            throw error("bad number in %s", opt);
+        }
+    }
+
+    /** A service whose sessions use machines configured by the
+     *  configuration file contents CONFIG. */
+    Service(byte[] config) {
+        _config = config;
+        Registry.machine(config);
+    }
+
+    /** Return the histogram of keystroke latencies, in nanoseconds. */
+    Histogram latencies() {
+        return _latencies;
+    }
+
+    /** Print a summary of the latencies on OUT every SECONDS seconds. */
+    void report(PrintStream out, int seconds) {
+        ScheduledExecutorService timer =
+            Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "latency-report");
+                t.setDaemon(true);
+                return t;
+            });
+        timer.scheduleAtFixedRate(() -> out.println(_latencies.summary()),
+                                  seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    /** Accept sessions on SERVER, each on its own thread, until SERVER is
+     *  closed. */
+    void serve(ServerSocket server) throws IOException {
+        ExecutorService pool = Batch.newExecutor();
+        try {
+            while (true) {
+                Socket client = server.accept();
+                pool.execute(() -> {
+                    try (Socket s = client) {
+                        s.setTcpNoDelay(true);
+                        session(s.getInputStream(), s.getOutputStream());
+                    } catch (IOException excp) {
+                        /* The client went away. */
+                    }
+                });
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /** Run a session reading from IN and answering on OUT until IN
+     *  ends. */
+    void session(InputStream in, OutputStream out) throws IOException {
+        Machine machine = Registry.machine(_config);
+        Alphabet alphabet = machine.alphabet();
+        boolean ready = false;
+        byte[] answer = new byte[UTF8_MAX];
+        in = new BufferedInputStream(in);
+        while (true) {
+            int b = in.read();
+            if (b < 0) {
+                return;
+            }
+            long start = System.nanoTime();
+            if (b == '*') {
+                ready = setUp(machine, in, out);
+                continue;
+            }
+            int ch = decode(b, in);
+            if (ch < 0) {
+                return;
+            }
+            int index = alphabet.toInt((char) ch);
+            if (index >= 0 && !ready) {
+                reply(out, "ERR no settings line");
+                continue;
+            }
+            if (index >= 0) {
+                ch = alphabet.toChar(machine.convert(index));
+            }
+            out.write(answer, 0, encode(ch, answer));
+            out.flush();
+            _latencies.record(System.nanoTime() - start);
+        }
+    }
+
+    /** Read the rest of a settings line, whose "*" has been read, from
+     *  IN and apply it to MACHINE, answering on OUT.  Return true iff it
+     *  was valid. */
+    private boolean setUp(Machine machine, InputStream in, OutputStream out)
+        throws IOException {
+        StringBuilder line = new StringBuilder("*");
+        while (true) {
+            int b = in.read();
+            if (b < 0 || b == '\n') {
+                break;
+            }
+            int ch = decode(b, in);
+            if (ch < 0) {
+                break;
+            }
+            line.append((char) ch);
+        }
+        try {
+            new Settings(line.toString().trim(), machine.numRotors())
+                .apply(machine);
+            reply(out, "OK");
+            return true;
+        } catch (EnigmaException excp) {
+            reply(out, "ERR " + excp.getMessage());
+            return false;
+        }
+    }
+
+    /** Write MSG and a newline to OUT. */
+    private static void reply(OutputStream out, String msg)
+        throws IOException {
+        out.write((msg + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    /** Return the character whose UTF-8 encoding starts with the byte
+     *  FIRST and continues on IN, or -1 if IN ends first.  Characters
+     *  outside the Basic Multilingual Plane and malformed sequences
+     *  become U+FFFD. */
+    static int decode(int first, InputStream in) throws IOException {
+        int more;
+        int ch;
+        if (first < 0x80) {
+            return first;
+        } else if ((first & 0xe0) == 0xc0) {
+            more = 1;
+            ch = first & 0x1f;
+        } else if ((first & 0xf0) == 0xe0) {
+            more = 2;
+            ch = first & 0x0f;
+        } else {
+            return REPLACEMENT;
+        }
+        for (int i = 0; i < more; i++) {
+            int b = in.read();
+            if (b < 0) {
+                return -1;
+            }
+            if ((b & 0xc0) != 0x80) {
+                return REPLACEMENT;
+            }
+            ch = (ch << 6) | (b & 0x3f);
+        }
+        return ch;
+    }
+
+    /** Write the UTF-8 encoding of the character CH into BUF, returning
+     *  its length. */
+    static int encode(int ch, byte[] buf) {
+        if (ch < 0x80) {
+            buf[0] = (byte) ch;
+            return 1;
+        } else if (ch < 0x800) {
+            buf[0] = (byte) (0xc0 | (ch >> 6));
+            buf[1] = (byte) (0x80 | (ch & 0x3f));
+            return 2;
+        }
+        buf[0] = (byte) (0xe0 | (ch >> 12));
+        buf[1] = (byte) (0x80 | ((ch >> 6) & 0x3f));
+        buf[2] = (byte) (0x80 | (ch & 0x3f));
+        return 3;
+    }
+
+    /** Port listened on by default. */
+    private static final int DEFAULT_PORT = 7043;
+    /** Default seconds between latency reports. */
+    private static final int DEFAULT_REPORT = 10;
+    /** Longest UTF-8 encoding of a character in the Basic Multilingual
+     *  Plane. */
+    private static final int UTF8_MAX = 3;
+    /** The Unicode replacement character. */
+    private static final int REPLACEMENT = 0xfffd;
+
+    /** Contents of the configuration file. */
+    private final byte[] _config;
+    /** Latencies of all keystrokes, in nanoseconds. */
+    private final Histogram _latencies = new Histogram();
+}
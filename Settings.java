@@ -0,0 +1,95 @@
+package enigma;
+
+import static enigma.EnigmaException.*;
+
+/** The contents of one settings line, such as
+ *  "* B Beta III IV I AXLE BAAA (HQ) (EX)": the rotors' names, their
+ *  settings, optionally their ring settings, and optionally the
+ *  plugboard's cycles.
+ *  @author Haoqing Xuan
+ */
+class Settings {
+
+    /** The settings given by LINE for a machine with NUMROTORS rotor
+     *  slots. */
+    Settings(String line, int numRotors) {
+        String[] contents = line.trim().split("\\s+");
+        if (!contents[0].equals("*")) {
+            throw error("wrong settings format");
+        }
+        if (contents.length < numRotors + 2) {
+            throw error("Need more info about rotors");
+        }
+        _rotors = new String[numRotors];
+        System.arraycopy(contents, 1, _rotors, 0, numRotors);
+        _positions = contents[numRotors + 1];
+        int plugs = numRotors + 2;
+        if (plugs < contents.length && !contents[plugs].startsWith("(")) {
+            _rings = contents[plugs];
+            plugs += 1;
+        } else {
+            _rings = null;
+        }
+        if (plugs < contents.length) {
+            StringBuilder cycles = new StringBuilder();
+            for (int i = plugs; i < contents.length; i++) {
+                cycles.append(contents[i]);
+            }
+            _plugboard = cycles.toString();
+        } else {
+            _plugboard = null;
+        }
+    }
+
+    /** Return the names of the rotors, reflector first. */
+    String[] rotors() {
+        return _rotors.clone();
+    }
+
+    /** Return the rotor settings, leftmost first, not counting the
+     *  reflector. */
+    String positions() {
+        return _positions;
+    }
+
+    /** Return the ring settings, in the same form as positions(), or
+     *  null if none were given. */
+    String rings() {
+        return _rings;
+    }
+
+    /** Return the plugboard's cycles, or null if none were given. */
+    String plugboard() {
+        return _plugboard;
+    }
+
+    /** Set up M with these settings.  A machine whose settings give no
+     *  plugboard has none.  Settings for the byte alphabet are written as
+     *  in Alphabet.decode. */
+    void apply(Machine M) {
+        for (String name : _rotors) {
+            if (!M.rotorExist(name)) {
+                throw error("invalid rotor name");
+            }
+        }
+        M.insertRotors(_rotors);
+        M.setRotors(M.alphabet().decode(_positions));
+        if (_rings != null) {
+            M.setRings(M.alphabet().decode(_rings));
+        }
+        if (_plugboard == null) {
+            M.setPlugboard(null);
+        } else {
+            M.setPlugboard(new Permutation(_plugboard, M.alphabet()));
+        }
+    }
+
+    /** Names of the rotors, reflector first. */
+    private final String[] _rotors;
+    /** Rotor settings. */
+    private final String _positions;
+    /** Ring settings, or null. */
+    private final String _rings;
+    /** Plugboard cycles, or null. */
+    private final String _plugboard;
+}
@@ -0,0 +1,463 @@
+package enigma;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntUnaryOperator;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static enigma.EnigmaException.*;
+
+/** The complete behavior of a CompiledMachine over all settings of its
+ *  moving rotors: for each state, the state that follows it and the
+ *  substitution applied in it.  Converting a character with a table is
+ *  two lookups.  Tables live outside the Java heap, in files mapped
+ *  into memory, and are kept between runs in the directory named by
+ *  the system property enigma.tables.dir (by default, .cache/enigma-tables
+ *  in the user's home directory), under the configuration's key().
+ *  Since a table reveals its configuration, the directory must be
+ *  private to the user; otherwise tables are built in memory and not
+ *  kept.  Each file holds a digest of its configuration's key and its
+ *  contents, and is rebuilt if they do not match.  The least recently
+ *  used files are deleted once the directory holds more than the
+ *  enigma.tables.disk system property (in bytes) allows.
+ *  @author Haoqing Xuan
+ */
+class StateTable {
+
+    /** Return the table for ENGINE's configuration, loading it from its
+     *  file or building it if need be, or null if it would be larger
+     *  than the enigma.tables.max system property (in bytes) allows or
+     *  the Budget has no room for it.  ENGINE's state is unchanged. */
+    static StateTable get(CompiledMachine engine) {
+        long bytes = tableBytes(engine.size(), engine.moving());
+        if (bytes > Long.getLong("enigma.tables.max", DEFAULT_MAX)) {
+            return null;
+        }
+        String key = engine.key();
+        StateTable table = LOADED.get(key);
+        Metrics.cache(Metrics.Cache.TABLES, table != null);
+        int size = engine.size();
+        long entries = (bytes - HEADER)
+            / (Integer.BYTES + size * width(size)) * (size + 1);
+        Budget.Charge charge = Budget.reserve(OWNER, key, bytes,
+                                              Budget.Space.OFF_HEAP,
+                                              Budget.estimate(entries));
+        String held = charge == null ? null : (String) charge.key();
+        if (held == null) {
+            return null;
+        } else if (table != null) {
+            return table;
+        }
+        long start = System.nanoTime();
+        table = LOADED.computeIfAbsent(held, k -> load(k, engine, bytes));
+        charge.cost(System.nanoTime() - start);
+        if (!charge.live()) {
+            LOADED.remove(held);
+        }
+        return table;
+    }
+
+    /** Return the number of bytes in a table for an alphabet of SIZE
+     *  characters and MOVING moving rotors, or Long.MAX_VALUE if it
+     *  could not be mapped at all. */
+    static long tableBytes(int size, int moving) {
+        long states = 1;
+        for (int k = 0; k < moving; k++) {
+            states *= size;
+            if (states > Integer.MAX_VALUE) {
+                return Long.MAX_VALUE;
+            }
+        }
+        long bytes = HEADER + states * (Integer.BYTES
+                                        + size * width(size));
+        return bytes > Integer.MAX_VALUE ? Long.MAX_VALUE : bytes;
+    }
+
+    /** Return the number of bytes used for each substitution entry with
+     *  an alphabet of SIZE characters. */
+    private static int width(int size) {
+        return size <= BYTE_LIMIT ? 1 : 2;
+    }
+
+    /** A table with alphabet size SIZE over STATES states, stored in
+     *  DATA in the format written by build. */
+    private StateTable(ByteBuffer data, int size, int states) {
+        _data = data;
+        _size = size;
+        _states = states;
+        _wide = width(size) == 2;
+        _substBase = HEADER + states * Integer.BYTES;
+    }
+
+    /** Return the number of states. */
+    int states() {
+        return _states;
+    }
+
+    /** Return the state that follows STATE. */
+    int next(int state) {
+        return _data.getInt(HEADER + state * Integer.BYTES);
+    }
+
+    /** Return the conversion of index C in STATE. */
+    int convert(int state, int c) {
+        int i = state * _size + c;
+        if (_wide) {
+            return _data.getChar(_substBase + 2 * i);
+        }
+        return _data.get(_substBase + i) & BYTE_MASK;
+    }
+
+    /** Return the sequence of states entered from START, which repeats
+     *  eventually since there are finitely many states. */
+    Orbit orbit(int start) {
+        return new Orbit(this::next, _states, start);
+    }
+
+    /** The states entered, in order, by a machine stepping from a given
+     *  state, which repeat eventually since there are finitely many.  The
+     *  states are traced only as far as they have been asked for, so
+     *  that finding a state N steps on costs at most N steps the first
+     *  time, and nothing for any state already traced. */
+    static final class Orbit {
+        /** The orbit from START of a machine with STATES states, the
+         *  successor of state S being NEXT.applyAsInt(S). */
+        Orbit(IntUnaryOperator next, int states, int start) {
+            _next = next;
+            _index = new int[states];
+            _orbit = new int[Math.min(states, INITIAL_ORBIT)];
+            _loop = -1;
+            add(start);
+        }
+
+        /** Return the state after OFFSET steps from the start, where
+         *  OFFSET >= 0. */
+        int stateAt(long offset) {
+            while (_loop < 0 && offset >= _length) {
+                extend();
+            }
+            if (offset < _length) {
+                return _orbit[(int) offset];
+            }
+            long period = _length - _loop;
+            return _orbit[(int) (_loop + (offset - _loop) % period)];
+        }
+
+        /** Return the state N >= 0 steps after STATE, or -1 if STATE has
+         *  not been traced. */
+        int stateAfter(int state, long n) {
+            int i = _index[state] - 1;
+            if (i < 0) {
+                return -1;
+            }
+            while (_loop < 0 && n >= _length - i) {
+                extend();
+            }
+            if (n < _length - i) {
+                return _orbit[(int) (i + n)];
+            }
+            long period = _length - _loop;
+            return _orbit[(int) (_loop + Math.floorMod(i - _loop
+                                                       + n % period,
+                                                       period))];
+        }
+
+        /** Return the number of states before the orbit repeats. */
+        int length() {
+            while (_loop < 0) {
+                extend();
+            }
+            return _length;
+        }
+
+        /** Trace the state after the last one traced, unless the orbit
+         *  has been found to repeat. */
+        private void extend() {
+            int state = _next.applyAsInt(_orbit[_length - 1]);
+            if (_index[state] != 0) {
+                _loop = _index[state] - 1;
+            } else {
+                add(state);
+            }
+        }
+
+        /** Add STATE, which has not been traced, to the end of the
+         *  orbit. */
+        private void add(int state) {
+            if (_length == _orbit.length) {
+                _orbit = Arrays.copyOf(_orbit, Math.min(_index.length,
+                                                        2 * _length));
+            }
+            _orbit[_length] = state;
+            _length += 1;
+            _index[state] = _length;
+        }
+
+        /** Initial capacity of _orbit. */
+        private static final int INITIAL_ORBIT = 1 << 10;
+
+        /** Gives the state after each state. */
+        private final IntUnaryOperator _next;
+        /** _index[s] is one more than the index of state S in _orbit, or
+         *  0 if S has not been traced. */
+        private final int[] _index;
+        /** The states traced, starting with the initial one. */
+        private int[] _orbit;
+        /** Number of states traced. */
+        private int _length;
+        /** Index in _orbit of the first repeated state, or -1 if no
+         *  state has been found to repeat yet. */
+        private int _loop;
+    }
+
+    /** Return the table for ENGINE, whose key is KEY and whose table is
+     *  BYTES long, from its file if one exists, and otherwise by building
+     *  it.  If the table directory cannot be written, the table is built
+     *  in memory outside the heap and not kept. */
+    private static StateTable load(String key, CompiledMachine engine,
+                                   long bytes) {
+        int size = engine.size();
+        int states = (int) ((bytes - HEADER)
+                            / (Integer.BYTES + size * width(size)));
+        Path dir = Paths.get(System.getProperty("enigma.tables.dir",
+            Paths.get(System.getProperty("user.home"), ".cache",
+                      "enigma-tables").toString()));
+        Path file = dir.resolve(key + ".tbl");
+        try {
+            checkPrivate(dir);
+            if (Files.size(file) == bytes) {
+                try (FileChannel in = FileChannel.open(file)) {
+                    ByteBuffer data =
+                        in.map(FileChannel.MapMode.READ_ONLY, 0, bytes);
+                    if (data.getInt(0) == MAGIC && data.getInt(4) == size
+                        && data.getInt(8) == states
+                        && Arrays.equals(digest(key, data),
+                                         storedDigest(data))) {
+                        Files.setLastModifiedTime(
+                            file, FileTime.fromMillis(
+                                System.currentTimeMillis()));
+                        return new StateTable(data, size, states);
+                    }
+                }
+            }
+        } catch (IOException excp) {
+            /* No usable file: build one. */
+        }
+        try {
+            makePrivate(dir);
+            Path tmp = Files.createTempFile(dir, key, ".tmp");
+            try (FileChannel out = FileChannel.open(tmp,
+                     StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                ByteBuffer data =
+                    out.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+                build(data, engine, states);
+                data.duplicate().position(DIGEST).put(digest(key, data));
+                Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE,
+                           StandardCopyOption.REPLACE_EXISTING);
+                prune(dir, file);
+                return new StateTable(data, size, states);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        } catch (IOException excp) {
+            ByteBuffer data = ByteBuffer.allocateDirect((int) bytes);
+            build(data, engine, states);
+            return new StateTable(data, size, states);
+        }
+    }
+
+    /** Create the directory DIR if need be, readable only by its owner,
+     *  and check that it is private (see checkPrivate). */
+    private static void makePrivate(Path dir) throws IOException {
+        if (!Files.isDirectory(dir) && dir.getFileSystem()
+            .supportedFileAttributeViews().contains("posix")) {
+            Files.createDirectories(dir,
+                PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+        } else {
+            Files.createDirectories(dir);
+        }
+        checkPrivate(dir);
+    }
+
+    /** Throw an IOException unless DIR, where file systems support it,
+     *  belongs to the current user and cannot be read or written by
+     *  anyone else. */
+    private static void checkPrivate(Path dir) throws IOException {
+        PosixFileAttributeView view =
+            Files.getFileAttributeView(dir, PosixFileAttributeView.class);
+        if (view == null) {
+            return;
+        }
+        PosixFileAttributes attrs = view.readAttributes();
+        UserPrincipal user = dir.getFileSystem()
+            .getUserPrincipalLookupService()
+            .lookupPrincipalByName(System.getProperty("user.name"));
+        if (!attrs.isDirectory() || !attrs.owner().equals(user)
+            || !OWNER_ONLY.containsAll(attrs.permissions())) {
+            throw new IOException(dir + " is not a private directory");
+        }
+    }
+
+    /** Delete the least recently used table files in DIR other than
+     *  KEEP until those left take at most the enigma.tables.disk system
+     *  property (in bytes) allows.  Loading a table counts as using
+     *  it. */
+    private static void prune(Path dir, Path keep) throws IOException {
+        long limit = Long.getLong("enigma.tables.disk", DEFAULT_DISK);
+        List<Path> files;
+        try (Stream<Path> list = Files.list(dir)) {
+            files = list.filter(p -> p.toString().endsWith(".tbl"))
+                .collect(Collectors.toList());
+        }
+        Map<Path, FileTime> used = new HashMap<>();
+        long total = 0;
+        for (Path p : files) {
+            try {
+                total += Files.size(p);
+                used.put(p, Files.getLastModifiedTime(p));
+            } catch (IOException excp) {
+                /* Deleted by another process. */
+            }
+        }
+        files = new ArrayList<>(used.keySet());
+        files.sort(Comparator.comparing(used::get));
+        for (Path p : files) {
+            if (total <= limit) {
+                break;
+            }
+            if (!p.equals(keep)) {
+                long size = Files.size(p);
+                if (Files.deleteIfExists(p)) {
+                    total -= size;
+                }
+            }
+        }
+    }
+
+    /** Return the digest of the table for the configuration with key KEY
+     *  in DATA, covering KEY and all of DATA but the digest itself. */
+    private static byte[] digest(String key, ByteBuffer data) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(key.getBytes(StandardCharsets.UTF_8));
+            md.update(data.duplicate().position(0).limit(DIGEST));
+            md.update(data.duplicate().position(HEADER));
+            return md.digest();
+        } catch (NoSuchAlgorithmException excp) {
+            throw error("SHA-256 is not available");
+        }
+    }
+
+    /** Return the digest stored in the table DATA. */
+    private static byte[] storedDigest(ByteBuffer data) {
+        byte[] stored = new byte[DIGEST_BYTES];
+        data.duplicate().position(DIGEST).get(stored);
+        return stored;
+    }
+
+    /** Fill DATA with the table for ENGINE, which has STATES states,
+     *  leaving ENGINE's state unchanged.  The layout is a header of
+     *  MAGIC, the alphabet size, STATES, a word of padding and the
+     *  digest (left zero here), then the following state of each state,
+     *  then each state's substitution. */
+    private static void build(ByteBuffer data, CompiledMachine engine,
+                              int states) {
+        int size = engine.size();
+        boolean wide = width(size) == 2;
+        int substBase = HEADER + states * Integer.BYTES;
+        int saved = engine.state();
+        data.putInt(0, MAGIC).putInt(4, size).putInt(8, states);
+        for (int state = 0; state < states; state++) {
+            engine.setState(state);
+            for (int c = 0; c < size; c++) {
+                int x = engine.encipher(c);
+                int i = state * size + c;
+                if (wide) {
+                    data.putChar(substBase + 2 * i, (char) x);
+                } else {
+                    data.put(substBase + i, (byte) x);
+                }
+            }
+            engine.step();
+            data.putInt(HEADER + state * Integer.BYTES, engine.state());
+        }
+        engine.setState(saved);
+    }
+
+    /** Tables already loaded by this process, by key. */
+    private static final Map<String, StateTable> LOADED =
+        new ConcurrentHashMap<>();
+
+    /** The Budget's owner of LOADED. */
+    private static final Budget.Owner OWNER = key -> LOADED.remove(key);
+
+    /** Default limit on the size of a table, in bytes. */
+    private static final long DEFAULT_MAX = 1L << 28;
+
+    /** Default limit on the bytes of table files kept on disk. */
+    private static final long DEFAULT_DISK = 1L << 30;
+
+    /** Permissions of a private table directory. */
+    private static final Set<PosixFilePermission> OWNER_ONLY =
+        PosixFilePermissions.fromString("rwx------");
+
+    /** First word of every table file. */
+    private static final int MAGIC = 0x454e5432;
+
+    /** Offset of the digest in the header. */
+    private static final int DIGEST = 16;
+
+    /** Size of the digest, a SHA-256 hash, in bytes. */
+    private static final int DIGEST_BYTES = 32;
+
+    /** Size of the header in bytes. */
+    private static final int HEADER = DIGEST + DIGEST_BYTES;
+
+    /** Largest alphabet whose indices fit in a byte. */
+    private static final int BYTE_LIMIT = 256;
+
+    /** Mask selecting the unsigned value of a byte. */
+    private static final int BYTE_MASK = 0xff;
+
+    /** The table, in the layout described at build. */
+    private final ByteBuffer _data;
+
+    /** Size of the alphabet. */
+    private final int _size;
+
+    /** Number of states. */
+    private final int _states;
+
+    /** True iff substitutions take two bytes each. */
+    private final boolean _wide;
+
+    /** Offset of the first substitution entry in _data. */
+    private final int _substBase;
+}
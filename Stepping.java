@@ -0,0 +1,195 @@
+package enigma;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static enigma.EnigmaException.*;
+
+/** A rule for advancing the moving rotors of a machine before each
+ *  character.  The moving rotors are numbered from 0 (leftmost) in the
+ *  arrays passed to step.  A rotor may have any number of notches.
+ *  For a given set of moving rotors, a model can be compiled by next
+ *  into a table giving the state that follows each state, so that
+ *  stepping costs one lookup.
+ *  @author Haoqing Xuan
+ */
+abstract class Stepping {
+
+    /** The stepping of the Enigma I and M4: the rightmost rotor always
+     *  advances, and a rotor advances when the rotor to its right is at
+     *  a notch; a rotor at a notch that is not the leftmost moving rotor
+     *  also advances itself (the "double step"). */
+    static final Stepping DOUBLE = new Stepping("double") {
+        @Override
+        void step(int[] posns, boolean[][] notches, int size) {
+            int last = posns.length - 1;
+            if (last < 0) {
+                return;
+            }
+            for (int k = 0; k < last; k++) {
+                if (notches[k + 1][posns[k + 1]]
+                    || (k > 0 && notches[k][posns[k]])) {
+                    posns[k] = posns[k] + 1 == size ? 0 : posns[k] + 1;
+                }
+            }
+            posns[last] = posns[last] + 1 == size ? 0 : posns[last] + 1;
+        }
+    };
+
+    /** A pure odometer, ignoring notches: the rightmost rotor always
+     *  advances, and each rotor carries into the one to its left when it
+     *  wraps around from its last setting to 0. */
+    static final Stepping ODOMETER = new Stepping("odometer") {
+        @Override
+        void step(int[] posns, boolean[][] notches, int size) {
+            for (int k = posns.length - 1; k >= 0; k--) {
+                posns[k] = posns[k] + 1 == size ? 0 : posns[k] + 1;
+                if (posns[k] != 0) {
+                    return;
+                }
+            }
+        }
+    };
+
+    /** Cog-driven stepping, as in the Abwehr Enigma G: the rightmost
+     *  rotor always advances, and a rotor advances exactly when the
+     *  rotor to its right advances from a notch.  There is no double
+     *  step; rotors usually have many notches, which makes the
+     *  movement irregular. */
+    static final Stepping COG = new Stepping("cog") {
+        @Override
+        void step(int[] posns, boolean[][] notches, int size) {
+            for (int k = posns.length - 1; k >= 0; k--) {
+                boolean carry = notches[k][posns[k]];
+                posns[k] = posns[k] + 1 == size ? 0 : posns[k] + 1;
+                if (!carry) {
+                    return;
+                }
+            }
+        }
+    };
+
+    /** A stepping model named NAME. */
+    private Stepping(String name) {
+        _name = name;
+    }
+
+    /** Return the model named NAME ("double", "odometer" or "cog"). */
+    static Stepping forName(String name) {
+        for (Stepping model : new Stepping[] { DOUBLE, ODOMETER, COG }) {
+            if (model.name().equals(name)) {
+                return model;
+            }
+        }
+        throw error("unknown stepping model %s", name);
+    }
+
+    /** Return my name. */
+    String name() {
+        return _name;
+    }
+
+    /** Advance POSNS, the settings of the moving rotors, once, where
+     *  NOTCHES[k][p] is true iff moving rotor K has a notch at setting P
+     *  and SIZE is the alphabet size. */
+    abstract void step(int[] posns, boolean[][] notches, int size);
+
+    /** Return a table giving, for each state of the moving rotors with
+     *  notches NOTCHES and an alphabet of SIZE characters, the state
+     *  that follows it, or null if there are too many states to
+     *  tabulate or the Budget has no room for the table.  A state
+     *  encodes the settings as digits in base SIZE, leftmost rotor
+     *  first.  Tables are shared by all machines with the same model
+     *  and notches. */
+    int[] next(boolean[][] notches, int size) {
+        long states = 1;
+        for (int k = 0; k < notches.length; k++) {
+            states *= size;
+            if (states > MAX_STATES) {
+                return null;
+            }
+        }
+        StringBuilder key = new StringBuilder(_name).append(':').append(size);
+        for (boolean[] row : notches) {
+            key.append('/');
+            for (int p = 0; p < size; p++) {
+                if (row[p]) {
+                    key.append(p).append(',');
+                }
+            }
+        }
+        String name = key.toString();
+        Budget.Charge charge = Budget.reserve(OWNER, name,
+                                              states * Integer.BYTES,
+                                              Budget.Space.HEAP,
+                                              Budget.estimate(states));
+        String held = charge == null ? null : (String) charge.key();
+        if (held == null) {
+            return null;
+        }
+        int[] table = TABLES.get(held);
+        if (table == null) {
+            long start = System.nanoTime();
+            table = TABLES.computeIfAbsent(held,
+                                           k -> tabulate(notches, size));
+            charge.cost(System.nanoTime() - start);
+        }
+        if (!charge.live()) {
+            TABLES.remove(held);
+        }
+        return table;
+    }
+
+    /** Return the table described at next for NOTCHES and SIZE. */
+    private int[] tabulate(boolean[][] notches, int size) {
+        int moving = notches.length;
+        int states = 1;
+        for (int k = 0; k < moving; k++) {
+            states *= size;
+        }
+        int[] table = new int[states];
+        int[] posns = new int[moving];
+        for (int state = 0; state < states; state++) {
+            decode(state, posns, size);
+            step(posns, notches, size);
+            table[state] = encode(posns, size);
+        }
+        return table;
+    }
+
+    /** Return the state with settings POSNS in an alphabet of SIZE. */
+    static int encode(int[] posns, int size) {
+        int state = 0;
+        for (int p : posns) {
+            state = state * size + p;
+        }
+        return state;
+    }
+
+    /** Set POSNS to the settings encoded by STATE in an alphabet of
+     *  SIZE. */
+    static void decode(int state, int[] posns, int size) {
+        for (int k = posns.length - 1; k >= 0; k--) {
+            posns[k] = state % size;
+            state /= size;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Stepping " + _name;
+    }
+
+    /** Largest number of states tabulated by next. */
+    private static final int MAX_STATES = 1 << 22;
+
+    /** Tables made by next, by model, alphabet size and notches. */
+    private static final Map<String, int[]> TABLES =
+        new ConcurrentHashMap<>();
+
+    /** The Budget's owner of TABLES. */
+    private static final Budget.Owner OWNER = key -> TABLES.remove(key);
+
+    /** My name. */
+    private final String _name;
+}
@@ -0,0 +1,274 @@
+package enigma;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import static enigma.EnigmaException.*;
+
+/** Converts one message under many settings lines at once.  The rotor
+ *  wirings, for each rotor and ring setting in use, are tabulated once
+ *  and shared by all settings.  The settings themselves are kept in
+ *  parallel arrays indexed by slot and then by key, rather than as
+ *  separate Machines, so that converting a character under every key
+ *  runs through contiguous memory.  The results are the same as those
+ *  of a Machine set up with each settings line in turn.
+ *  @author Haoqing Xuan
+ */
+class Sweep {
+
+    /** An empty sweep using the configuration of MACHINE, which is not
+     *  changed. */
+    Sweep(Machine machine) {
+        _scratch = machine.copy();
+        _alphabet = machine.alphabet();
+        _size = _alphabet.size();
+        _numRotors = machine.numRotors();
+        _moving = machine.numPawls();
+        _first = _numRotors - _moving;
+        _stepping = machine.stepping();
+        _stepRows = new boolean[_moving][];
+        _stepPosns = new int[_moving];
+        _table = new int[_numRotors][INITIAL];
+        _posns = new int[_numRotors][INITIAL];
+        _core = new int[INITIAL * _size];
+        _plug = new int[INITIAL * _size];
+        _plugInverse = new int[INITIAL * _size];
+        _wiring = new int[0];
+        _inverse = new int[0];
+        _notch = new boolean[0];
+    }
+
+    /** Return the number of settings added. */
+    int size() {
+        return _count;
+    }
+
+    /** Add the settings line LINE, which must be valid for my
+     *  configuration. */
+    void add(String line) {
+        Settings settings = new Settings(line, _numRotors);
+        String[] names = settings.rotors();
+        for (String name : names) {
+            if (!_scratch.rotorExist(name)) {
+                throw error("invalid rotor name");
+            }
+        }
+        _scratch.insertRotors(names);
+        String posns = _alphabet.decode(settings.positions());
+        String rings = settings.rings() == null ? null
+            : _alphabet.decode(settings.rings());
+        if (posns.length() != _numRotors - 1
+            || (rings != null && rings.length() != _numRotors - 1)) {
+            throw error("Rotor length doesn't match");
+        }
+        grow();
+
+        int k = _count;
+        for (int s = 0; s < _numRotors; s++) {
+            int posn = s == 0 ? 0 : index(posns.charAt(s - 1));
+            int ring = s == 0 || rings == null
+                ? 0 : index(rings.charAt(s - 1));
+            _table[s][k] = table(_scratch.rotor(s), ring);
+            _posns[s][k] = posn;
+        }
+        for (int c = 0; c < _size; c++) {
+            int x = c;
+            for (int s = _first - 1; s >= 0; s--) {
+                x = pass(_wiring, _table[s][k], _posns[s][k], x);
+            }
+            for (int s = 1; s < _first; s++) {
+                x = pass(_inverse, _table[s][k], _posns[s][k], x);
+            }
+            _core[k * _size + c] = x;
+        }
+        Permutation plugboard = settings.plugboard() == null ? null
+            : new Permutation(settings.plugboard(), _alphabet);
+        for (int c = 0; c < _size; c++) {
+            _plug[k * _size + c] =
+                plugboard == null ? c : plugboard.permute(c);
+            _plugInverse[k * _size + c] =
+                plugboard == null ? c : plugboard.invert(c);
+        }
+        _count += 1;
+    }
+
+    /** Return the conversions of MSG under each settings line, in the
+     *  order they were added.  As for Machine.convert(String), blanks are
+     *  removed from MSG first. */
+    String[] convert(String msg) {
+        msg = msg.trim().replace(" ", "");
+        int len = msg.length();
+        int[] input = new int[len];
+        for (int i = 0; i < len; i++) {
+            input[i] = index(msg.charAt(i));
+        }
+
+        int n = _size;
+        int keys = _count;
+        int last = _numRotors - 1;
+        int[][] posns = new int[_numRotors][];
+        for (int s = 0; s < _numRotors; s++) {
+            posns[s] = Arrays.copyOf(_posns[s], keys);
+        }
+        char[][] output = new char[keys][len];
+        for (int i = 0; i < len; i++) {
+            int c = input[i];
+            for (int k = 0; k < keys; k++) {
+                step(posns, k);
+                int x = _plug[k * n + c];
+                for (int s = last; s >= _first; s--) {
+                    x = pass(_wiring, _table[s][k], posns[s][k], x);
+                }
+                x = _core[k * n + x];
+                for (int s = _first; s <= last; s++) {
+                    x = pass(_inverse, _table[s][k], posns[s][k], x);
+                }
+                output[k][i] = _alphabet.toChar(_plugInverse[k * n + x]);
+            }
+        }
+        String[] result = new String[keys];
+        for (int k = 0; k < keys; k++) {
+            result[k] = new String(output[k]);
+        }
+        return result;
+    }
+
+    /** Advance the moving rotors of key K, whose settings are
+     *  POSNS[slot][K], as Machine.convert(int) does.  The double-step
+     *  model is evaluated in place; others are handed the settings and
+     *  notches of key K. */
+    private void step(int[][] posns, int k) {
+        int n = _size;
+        int last = _numRotors - 1;
+        if (_moving == 0) {
+            return;
+        }
+        if (_stepping != Stepping.DOUBLE) {
+            for (int j = 0; j < _moving; j++) {
+                _stepRows[j] = _notchRows.get(_table[_first + j][k]);
+                _stepPosns[j] = posns[_first + j][k];
+            }
+            _stepping.step(_stepPosns, _stepRows, n);
+            for (int j = 0; j < _moving; j++) {
+                posns[_first + j][k] = _stepPosns[j];
+            }
+            return;
+        }
+        for (int s = _first; s < last; s++) {
+            boolean here = _notch[_table[s][k] * n + posns[s][k]];
+            boolean right =
+                _notch[_table[s + 1][k] * n + posns[s + 1][k]];
+            if (right || (here && s > _first)) {
+                posns[s][k] = posns[s][k] + 1 == n ? 0 : posns[s][k] + 1;
+            }
+        }
+        posns[last][k] = posns[last][k] + 1 == n ? 0 : posns[last][k] + 1;
+    }
+
+    /** Return the result of passing X through the rotor whose wiring (or
+     *  inverse) is table number T of TABLES, at setting POSN. */
+    private int pass(int[] tables, int t, int posn, int x) {
+        int n = _size;
+        int p = x + posn;
+        int y = tables[t * n + (p >= n ? p - n : p)] - posn;
+        return y < 0 ? y + n : y;
+    }
+
+    /** Return the number of the shared table for rotor R at ring
+     *  setting RING, making it if need be. */
+    private int table(Rotor r, int ring) {
+        String key = r.name() + "/" + ring;
+        Integer t = _tables.get(key);
+        if (t != null) {
+            return t;
+        }
+        int n = _size;
+        int number = _tables.size();
+        _wiring = Arrays.copyOf(_wiring, (number + 1) * n);
+        _inverse = Arrays.copyOf(_inverse, (number + 1) * n);
+        _notch = Arrays.copyOf(_notch, (number + 1) * n);
+        boolean[] notches = new boolean[n];
+        Permutation perm = r.basePermutation().conjugateByShift(-ring);
+        for (int x = 0; x < n; x++) {
+            int y = perm.permute(x);
+            _wiring[number * n + x] = y;
+            _inverse[number * n + y] = x;
+            _notch[number * n + x] = r.notchAt(x);
+            notches[x] = r.notchAt(x);
+        }
+        _notchRows.add(notches);
+        _tables.put(key, number);
+        return number;
+    }
+
+    /** Return the index of CH, which must be in my alphabet. */
+    private int index(char ch) {
+        int result = _alphabet.toInt(ch);
+        if (result < 0) {
+            throw error("'%c' is not in the alphabet", ch);
+        }
+        return result;
+    }
+
+    /** Make room for one more key. */
+    private void grow() {
+        int capacity = _posns[0].length;
+        if (_count < capacity) {
+            return;
+        }
+        capacity *= 2;
+        for (int s = 0; s < _numRotors; s++) {
+            _table[s] = Arrays.copyOf(_table[s], capacity);
+            _posns[s] = Arrays.copyOf(_posns[s], capacity);
+        }
+        _core = Arrays.copyOf(_core, capacity * _size);
+        _plug = Arrays.copyOf(_plug, capacity * _size);
+        _plugInverse = Arrays.copyOf(_plugInverse, capacity * _size);
+    }
+
+    /** Number of keys space is first made for. */
+    private static final int INITIAL = 16;
+
+    /** A copy of the configured machine, used to check rotor orders. */
+    private final Machine _scratch;
+    /** The alphabet. */
+    private final Alphabet _alphabet;
+    /** Size of the alphabet. */
+    private final int _size;
+    /** Number of rotor slots. */
+    private final int _numRotors;
+    /** Number of moving rotors. */
+    private final int _moving;
+    /** Slot of the leftmost moving rotor. */
+    private final int _first;
+    /** Number of keys added. */
+    private int _count;
+    /** Shared table numbers, by rotor name and ring setting. */
+    private final HashMap<String, Integer> _tables = new HashMap<>();
+    /** Wirings of the shared tables, _size entries each. */
+    private int[] _wiring;
+    /** Inverse wirings of the shared tables. */
+    private int[] _inverse;
+    /** Notches of the shared tables, by setting. */
+    private boolean[] _notch;
+    /** Notches of the shared tables, as rows for _stepping. */
+    private final ArrayList<boolean[]> _notchRows = new ArrayList<>();
+    /** How the rotors step. */
+    private final Stepping _stepping;
+    /** Scratch notch rows of the moving rotors of one key. */
+    private final boolean[][] _stepRows;
+    /** Scratch settings of the moving rotors of one key. */
+    private final int[] _stepPosns;
+    /** _table[s][k] is the shared table of slot S under key K. */
+    private final int[][] _table;
+    /** _posns[s][k] is the initial setting of slot S under key K. */
+    private final int[][] _posns;
+    /** For each key, the mapping through the non-moving rotors and the
+     *  reflector and back, _size entries each. */
+    private int[] _core;
+    /** For each key, the plugboard mapping. */
+    private int[] _plug;
+    /** For each key, the inverse plugboard mapping. */
+    private int[] _plugInverse;
+}